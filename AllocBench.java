@@ -0,0 +1,119 @@
+import java.util.Random;
+
+public class AllocBench {
+    /**
+     * Compares the allocation policies on aged volumes. Each policy gets
+     * the same seeded churn of creates, random writes and destroys (more
+     * names than the disk has room for, so it fills up and frees again),
+     * then the result is measured:
+     *   extents/file  how many contiguous pieces the average file is in
+     *   free frag     1 - largest free run / free blocks
+     *   failed        writes refused for lack of space
+     *   ns/alloc      search time on the aged bitmap for 1 and 3 blocks
+     * 
+     * Run with: java AllocBench
+     */
+
+    private static final String[] POLICIES = { "first", "next", "best", "near" };
+    private static final int NAMES = IO.NUMB_DESCRIPTORS;
+    private static final int CHURN = 5000;
+    private static final int SEARCHES = 1000000;
+    private static final long SEED = 42;
+
+    private static int checksum;
+
+    static byte[] name(int n) {
+        return ("f" + n).getBytes();
+    }
+
+    /**
+     * run the churn, returns the number of failed writes
+     */
+    static int age(FileSystem fs, Random random) {
+        boolean[] exists = new boolean[NAMES];
+        int failed = 0;
+        for (int op = 0; op < CHURN; op++) {
+            int n = random.nextInt(NAMES);
+            if (!exists[n]) {
+                exists[n] = (fs.create(name(n)) == FileSystem.COMMAND_SUCCEED);
+                continue;
+            }
+            if (random.nextInt(10) < 2) {
+                fs.destroy(name(n));
+                exists[n] = false;
+                continue;
+            }
+            int oftIndex = fs.open(name(n));
+            int position = random.nextInt(FileSystem.MAX_FILESIZE);
+            int length = 1 + random.nextInt(Math.min(IO.BLOCK_SIZE, FileSystem.MAX_FILESIZE - position));
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            fs.lseek(oftIndex, position);
+            if (fs.writeFile(oftIndex, data) == FileSystem.COMMAND_FAIL) {
+                failed++;
+            }
+            fs.close(oftIndex);
+        }
+        return failed;
+    }
+
+    static double extentsPerFile(FileSystem fs) {
+        int files = 0;
+        int extents = 0;
+        for (DirectoryEntry entry : fs.listDirectory(0, IO.NUMB_DESCRIPTORS).getEntries()) {
+            files++;
+            int prev = -1;
+            for (int blockNumb = 1; blockNumb <= FileSystem.MAX_FILE_BLOCKS; blockNumb++) {
+                int index = fs.blockNumToBlockIndex(entry.getDescriptorNumb(), blockNumb);
+                if (index < BitMap.FIRST_DATA_BLOCK) {
+                    prev = -1; // hole
+                    continue;
+                }
+                if (index != prev + 1) {
+                    extents++;
+                }
+                prev = index;
+            }
+        }
+        return (files == 0) ? 0 : (double) extents / files;
+    }
+
+    static double searchNanos(AllocationPolicy allocator, BitMap bitmap, int count, Random random) {
+        long start = System.nanoTime();
+        int sum = 0;
+        for (int i = 0; i < SEARCHES; i++) {
+            int hint = BitMap.FIRST_DATA_BLOCK + random.nextInt(BitMap.NUMB_DATA_BLOCKS);
+            sum += allocator.allocateRun(bitmap, count, hint);
+        }
+        checksum += sum;
+        return (double) (System.nanoTime() - start) / SEARCHES;
+    }
+
+    public static void main(String[] args) {
+        // warm up every policy's search loop
+        for (String policy : POLICIES) {
+            searchNanos(AllocationPolicy.fromName(policy), new BitMap(), 2, new Random(SEED));
+        }
+        System.out.printf("%-6s %13s %10s %7s %7s %12s %12s%n", "policy", "extents/file",
+                "free frag", "free", "failed", "ns/alloc(1)", "ns/alloc(3)");
+        for (String policy : POLICIES) {
+            FileSystem fs = new FileSystem();
+            fs.setAllocationPolicy(AllocationPolicy.fromName(policy));
+            int failed = age(fs, new Random(SEED));
+
+            StatFs stats = fs.statfs();
+            double freeFrag = (stats.getFreeBlocks() == 0) ? 0 
+                    : 1.0 - (double) stats.getLargestFreeExtent() / stats.getFreeBlocks();
+            Snapshot snapshot = fs.snapshot();
+            BitMap aged = snapshot.getBitMap();
+            snapshot.release();
+            AllocationPolicy allocator = AllocationPolicy.fromName(policy);
+            double one = searchNanos(allocator, aged, 1, new Random(SEED));
+            double three = searchNanos(allocator, aged, 3, new Random(SEED));
+
+            System.out.printf("%-6s %13.2f %10.2f %7d %7d %12.1f %12.1f%n", policy,
+                    extentsPerFile(fs), freeFrag, stats.getFreeBlocks(), failed, one, three);
+        }
+        System.out.println("checksum " + checksum);
+    }
+}
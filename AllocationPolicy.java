@@ -0,0 +1,35 @@
+public interface AllocationPolicy {
+    /**
+     * Decides where new data blocks go. A policy only picks, the caller
+     * marks the blocks taken in the bitmap. Selected per volume with
+     * FileSystem.setAllocationPolicy(...).
+     */
+
+    /**
+     * Start of count free data blocks in a row, BitMap.BITMAP_ERR if there
+     * is no such run. hint is the ldisk index the file would like next
+     * (right after its previous block), -1 when it has no preference.
+     */
+    int allocateRun(BitMap bitmap, int count, int hint);
+
+    String getName();
+
+    /**
+     * driver spelling: first, next, best, near
+     */
+    static AllocationPolicy fromName(String name) {
+        if (name.equals("first")) {
+            return new FirstFitPolicy();
+        }
+        else if (name.equals("next")) {
+            return new NextFitPolicy();
+        }
+        else if (name.equals("best")) {
+            return new BestFitPolicy();
+        }
+        else if (name.equals("near")) {
+            return new LocalityPolicy();
+        }
+        return null;
+    }
+}
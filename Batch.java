@@ -0,0 +1,51 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class Batch {
+    /**
+     * Ordered list of operations handed to FileSystem.applyBatch(...). The
+     * whole list is checked against one copy of the metadata and applied
+     * as a unit, so either every operation happens or none does. Later
+     * operations see the effect of earlier ones (create then write works).
+     */
+
+    private List<BatchOp> ops;
+    // index of the op that made the last apply fail, -1 if none did
+    private int failedOp;
+
+    public Batch() {
+        this.ops = new ArrayList<BatchOp>();
+        this.failedOp = -1;
+    }
+
+    public void create(byte[] filename) {
+        this.ops.add(new BatchOp(BatchOp.CREATE, filename, 0, null));
+    }
+
+    public void destroy(byte[] filename) {
+        this.ops.add(new BatchOp(BatchOp.DESTROY, filename, 0, null));
+    }
+
+    /**
+     * write data at position, the file must not be open
+     */
+    public void write(byte[] filename, int position, byte[] data) {
+        this.ops.add(new BatchOp(BatchOp.WRITE, filename, position, data));
+    }
+
+    public List<BatchOp> getOps() {
+        return this.ops;
+    }
+
+    public int size() {
+        return this.ops.size();
+    }
+
+    public int getFailedOp() {
+        return this.failedOp;
+    }
+
+    public void setFailedOp(int failedOp) {
+        this.failedOp = failedOp;
+    }
+}
@@ -0,0 +1,38 @@
+public class BatchOp {
+    /**
+     * One operation queued in a Batch: a create, a destroy, or a write of
+     * some bytes at a position of a (closed) file.
+     */
+
+    public static final int CREATE = 0;
+    public static final int DESTROY = 1;
+    public static final int WRITE = 2;
+
+    private int kind;
+    private byte[] filename;
+    private int position;
+    private byte[] data;
+
+    public BatchOp(int kind, byte[] filename, int position, byte[] data) {
+        this.kind = kind;
+        this.filename = filename;
+        this.position = position;
+        this.data = data;
+    }
+
+    public int getKind() {
+        return this.kind;
+    }
+
+    public byte[] getFilename() {
+        return this.filename;
+    }
+
+    public int getPosition() {
+        return this.position;
+    }
+
+    public byte[] getData() {
+        return this.data;
+    }
+}
@@ -0,0 +1,35 @@
+public class BestFitPolicy implements AllocationPolicy {
+    /**
+     * Smallest free extent that still fits the run. Small requests fill
+     * the small holes and leave the long extents for files that need them.
+     */
+
+    @Override
+    public int allocateRun(BitMap bitmap, int count, int hint) {
+        int best = BitMap.BITMAP_ERR;
+        int bestLength = Integer.MAX_VALUE;
+        int runStart = BitMap.FIRST_DATA_BLOCK;
+        int runLength = 0;
+        // one past the end closes the last run
+        for (int index = BitMap.FIRST_DATA_BLOCK; index <= IO.LDISK_SIZE; index++) {
+            if (index < IO.LDISK_SIZE && !bitmap.isOne(index)) {
+                if (runLength == 0) {
+                    runStart = index;
+                }
+                runLength++;
+                continue;
+            }
+            if (runLength >= count && runLength < bestLength) {
+                best = runStart;
+                bestLength = runLength;
+            }
+            runLength = 0;
+        }
+        return best;
+    }
+
+    @Override
+    public String getName() {
+        return "best";
+    }
+}
@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 class BitMap {
     /**
      * We will be using the bitmap is a hash marker for determining which blocks
@@ -6,9 +8,18 @@ class BitMap {
      */
     
     public static final int BITMAP_ERR = -1;
+    // blocks 0-6 hold the directory descriptor and the descriptors
+    public static final int FIRST_DATA_BLOCK = 7;
+    public static final int NUMB_DATA_BLOCKS = 64 - FIRST_DATA_BLOCK;
 
     private int[] bitmap;
     private int[] mask;
+    // kept in step with every set, so statfs never has to scan
+    private int freeDataBlocks;
+    private int largestFreeRun;
+    private boolean largestFreeRunStale;
+    // words changed since the bitmap was last written into block 0
+    private boolean[] dirty;
 
     public BitMap() {
         this.bitmap = new int[2]; // 2 ints -> 8 bytes -> 64 bits == # of blocks
@@ -18,6 +29,64 @@ class BitMap {
         for (int i=30; i >= 0; i--) {
             this.mask[i] = this.mask[i + 1] << 1;
         }
+        this.freeDataBlocks = NUMB_DATA_BLOCKS;
+        this.largestFreeRun = NUMB_DATA_BLOCKS;
+
+        // nothing is on disk yet, so everything needs writing
+        this.dirty = new boolean[this.bitmap.length];
+        Arrays.fill(this.dirty, true);
+    }
+
+    /**
+     * The bitmap lives in block 0 right behind the directory descriptor.
+     * Writes are lazy: only words changed since the last flush are packed
+     * into the block, and nothing at all is written if none changed.
+     */
+    public void flushTo(IO io) {
+        byte[] blockZero = null;
+        for (int i=0; i < this.bitmap.length; i++) {
+            if (!this.dirty[i]) {
+                continue;
+            }
+            if (blockZero == null) {
+                blockZero = io.readBlock(0);
+            }
+            Utils.intPack(blockZero, this.bitmap[i], IO.DIRECTORY_DESCRIPTOR_SIZE + i * 4);
+            this.dirty[i] = false;
+        }
+        if (blockZero != null) {
+            io.writeBlock(0, blockZero);
+        }
+    }
+
+    /**
+     * images written before the bitmap was persisted (or never flushed)
+     * have nothing but empty bytes where it should be
+     */
+    public static boolean isStored(byte[] blockZero) {
+        if (blockZero.length < IO.BLOCK_ZERO_SIZE) {
+            return false;
+        }
+        for (int i=IO.DIRECTORY_DESCRIPTOR_SIZE; i < IO.BLOCK_ZERO_SIZE; i++) {
+            if (!Utils.isByteFree(blockZero[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void loadFrom(byte[] blockZero) {
+        for (int i=0; i < this.bitmap.length; i++) {
+            this.bitmap[i] = Utils.intUnpack(blockZero, IO.DIRECTORY_DESCRIPTOR_SIZE + i * 4);
+            this.dirty[i] = false;
+        }
+        this.freeDataBlocks = NUMB_DATA_BLOCKS;
+        for (int index = FIRST_DATA_BLOCK; index < 64; index++) {
+            if (this.isOne(index)) {
+                this.freeDataBlocks--;
+            }
+        }
+        this.largestFreeRunStale = true;
     }
 
     /**
@@ -41,7 +110,12 @@ class BitMap {
     }
 
     public void setZero(int index) {
+        if (index >= FIRST_DATA_BLOCK && this.isOne(index)) {
+            this.freeDataBlocks++;
+            this.largestFreeRunStale = true;
+        }
         int arrIndex = this.arrIndex(index);
+        this.dirty[arrIndex] = true;
         int normIndex = this.normIndex(index);
 
         int invMask = ~this.mask[normIndex];
@@ -49,12 +123,39 @@ class BitMap {
     }
 
     public void setOne(int index) {
+        if (index >= FIRST_DATA_BLOCK && !this.isOne(index)) {
+            this.freeDataBlocks--;
+            this.largestFreeRunStale = true;
+        }
         int arrIndex = this.arrIndex(index);
+        this.dirty[arrIndex] = true;
         int normIndex = this.normIndex(index);
 
         this.bitmap[arrIndex] = this.bitmap[arrIndex] | this.mask[normIndex];
     }
 
+    public boolean isOne(int index) {
+        int arrIndex = this.arrIndex(index);
+        int normIndex = this.normIndex(index);
+
+        return ((this.bitmap[arrIndex] & this.mask[normIndex]) != 0);
+    }
+
+    /**
+     * hand back an independent copy, used when freezing a snapshot
+     */
+    public BitMap copy() {
+        BitMap copy = new BitMap();
+        for (int i=0; i < this.bitmap.length; i++) {
+            copy.bitmap[i] = this.bitmap[i];
+        }
+        copy.freeDataBlocks = this.freeDataBlocks;
+        copy.largestFreeRun = this.largestFreeRun;
+        copy.largestFreeRunStale = this.largestFreeRunStale;
+        copy.dirty = this.dirty.clone();
+        return copy;
+    }
+
     /**
      * slots 1-3 are reserved for the OFT
      */
@@ -90,6 +191,70 @@ class BitMap {
         return BITMAP_ERR;
     }
     
+    /**
+     * first-fit search for count free data blocks in a row, used so
+     * delayed allocation can lay a file out contiguously
+     */
+    public int closestDataRun(int count) {
+        int runStart = BITMAP_ERR;
+        int runLength = 0;
+        for (int index = FIRST_DATA_BLOCK; index < 64; index++) {
+            if (this.isOne(index)) {
+                runLength = 0;
+                continue;
+            }
+            if (runLength == 0) {
+                runStart = index;
+            }
+            runLength++;
+            if (runLength == count) {
+                return runStart;
+            }
+        }
+        return BITMAP_ERR;
+    }
+
+    public int countFreeDataBlocks() {
+        return this.freeDataBlocks;
+    }
+
+    /**
+     * open file slots live in bits 1-3
+     */
+    public int countOpenFiles() {
+        int open = 0;
+        for (int i = 1; i <= 3; i++) {
+            if (this.isOne(i)) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Longest run of free data blocks. Only rescanned after the bitmap
+     * changed, so polling it repeatedly is free.
+     */
+    public int largestFreeRun() {
+        if (!this.largestFreeRunStale) {
+            return this.largestFreeRun;
+        }
+        int best = 0;
+        int runLength = 0;
+        for (int index = FIRST_DATA_BLOCK; index < 64; index++) {
+            if (this.isOne(index)) {
+                runLength = 0;
+            }
+            else {
+                runLength++;
+                best = Math.max(best, runLength);
+            }
+        }
+        this.largestFreeRun = best;
+        this.largestFreeRunStale = false;
+        return best;
+    }
+    
     public int closestZero() {
         for (int i=0; i < 2; i++) {
             for (int j=0; j < 32; j++) {
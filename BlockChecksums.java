@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32C;
+
+public class BlockChecksums {
+    /**
+     * CRC32C of every block. IO keeps one per block up to date on every
+     * write, the image formats store the whole table next to the blocks
+     * and it is checked again when an image is loaded. The table is
+     * LDISK_SIZE ints, big-endian, TABLE_SIZE bytes.
+     */
+
+    public static final int TABLE_SIZE = IO.LDISK_SIZE * 4;
+
+    public static int compute(byte[] block) {
+        return compute(block, 0, block.length);
+    }
+
+    public static int compute(byte[] arr, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(arr, offset, length);
+        return (int) crc.getValue();
+    }
+
+    public static byte[] encode(int[] checksums) {
+        byte[] table = new byte[TABLE_SIZE];
+        for (int i=0; i < IO.LDISK_SIZE; i++) {
+            Utils.intPack(table, checksums[i], i * 4);
+        }
+        return table;
+    }
+
+    public static int[] decode(byte[] table) {
+        int[] checksums = new int[IO.LDISK_SIZE];
+        for (int i=0; i < IO.LDISK_SIZE; i++) {
+            checksums[i] = Utils.intUnpack(table, i * 4);
+        }
+        return checksums;
+    }
+
+    /**
+     * Check every block against the table, in parallel on the common
+     * fork/join pool. Throws naming the first bad block.
+     */
+    public static void verify(byte[][] ldisk, int[] checksums) throws IOException {
+        int bad = ForkJoinPool.commonPool().invoke(
+                new ChecksumTask(ldisk, checksums, 0, ldisk.length));
+        if (bad != ChecksumTask.ALL_GOOD) {
+            throw new IOException("checksum mismatch in block " + bad);
+        }
+    }
+
+    /**
+     * single range check, used when only part of the disk is at hand
+     */
+    public static void verify(byte[][] ldisk, int[] checksums, int from, int to) 
+            throws IOException {
+        for (int i=from; i < to; i++) {
+            if (compute(ldisk[i]) != checksums[i]) {
+                throw new IOException("checksum mismatch in block " + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+public class BlockPool {
+    /**
+     * Recycles the flat block stores of IO across volumes. Every store is
+     * the same size (LDISK_SIZE * BLOCK_SIZE bytes), so a store given back
+     * by a volume that is closed or re-initialized fits the next volume
+     * as is. The pool grows GROW_STORES stores at a time and keeps at most
+     * maxIdle of them around, so with tenants coming and going the heap
+     * holds a steady set of equal sized arrays instead of fresh garbage.
+     *
+     * A store still shared by a snapshot or a read view is never handed
+     * back, IO only releases stores nothing else can see.
+     */
+
+    public static final int STORE_BYTES = IO.LDISK_SIZE * IO.BLOCK_SIZE;
+    public static final int GROW_STORES = 16;
+    public static final int DEFAULT_MAX_IDLE = 1024; // 4 MB of stores
+
+    private static final BlockPool SHARED = new BlockPool(DEFAULT_MAX_IDLE);
+
+    private byte[][] idle;
+    private int idleCount;
+    private int maxIdle;
+    // stats
+    private long created;
+    private long reused;
+    private long dropped;
+
+    public BlockPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+        this.idle = new byte[GROW_STORES][];
+    }
+
+    /**
+     * the pool every IO draws from
+     */
+    public static BlockPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * A store with every byte set to IO.EMPTY_BYTE
+     */
+    public byte[] acquire() {
+        byte[] store = this.take();
+        Arrays.fill(store, IO.EMPTY_BYTE);
+        return store;
+    }
+
+    private synchronized byte[] take() {
+        if (this.idleCount == 0) {
+            // an empty pool grows by a batch, allocated back to back
+            int batch = Math.max(1, Math.min(GROW_STORES, this.maxIdle));
+            this.ensureCapacity(batch);
+            for (int i=0; i < batch; i++) {
+                this.idle[this.idleCount++] = new byte[STORE_BYTES];
+            }
+            this.created += batch;
+        }
+        else {
+            this.reused++;
+        }
+        byte[] store = this.idle[--this.idleCount];
+        this.idle[this.idleCount] = null;
+        return store;
+    }
+
+    /**
+     * Give a store back. The caller must not touch it afterwards. Past
+     * maxIdle idle stores it is left to the garbage collector.
+     */
+    public synchronized void release(byte[] store) {
+        if (store.length != STORE_BYTES || this.idleCount >= this.maxIdle) {
+            this.dropped++;
+            return;
+        }
+        this.ensureCapacity(this.idleCount + 1);
+        this.idle[this.idleCount++] = store;
+    }
+
+    /**
+     * Cap the idle stores kept around, extra ones are dropped right away
+     */
+    public synchronized void setMaxIdle(int maxIdle) {
+        this.maxIdle = Math.max(0, maxIdle);
+        while (this.idleCount > this.maxIdle) {
+            this.idle[--this.idleCount] = null;
+            this.dropped++;
+        }
+    }
+
+    public synchronized int getMaxIdle() {
+        return this.maxIdle;
+    }
+
+    public synchronized int getIdleCount() {
+        return this.idleCount;
+    }
+
+    public synchronized long getCreated() {
+        return this.created;
+    }
+
+    public synchronized long getReused() {
+        return this.reused;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.idle.length) {
+            this.idle = Arrays.copyOf(this.idle, Math.max(capacity, this.idle.length * 2));
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d stores created, %d reused, %d dropped, %d idle",
+                this.created, this.reused, this.dropped, this.idleCount);
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class BlockTrace {
+    /**
+     * Every block access an IO makes while a trace is attached (see
+     * FileSystem.setTrace), in order, so a workload can be replayed
+     * through an IOQueue against the simulated disk later.
+     */
+
+    private List<int[]> accesses = new ArrayList<int[]>();
+
+    public void record(int start, int count, boolean write) {
+        this.accesses.add(new int[] { start, count, write ? 1 : 0 });
+    }
+
+    public int size() {
+        return this.accesses.size();
+    }
+
+    /**
+     * Turn the trace into requests with exponentially distributed gaps
+     * between arrivals (a Poisson process), meanGapNs apart on average.
+     */
+    public List<IORequest> toRequests(Random random, long meanGapNs) {
+        List<IORequest> requests = new ArrayList<IORequest>();
+        long arrival = 0;
+        for (int[] access : this.accesses) {
+            requests.add(new IORequest(access[0], access[1], access[2] == 1, arrival));
+            arrival += (long) (-Math.log(1.0 - random.nextDouble()) * meanGapNs);
+        }
+        return requests;
+    }
+}
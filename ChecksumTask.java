@@ -0,0 +1,46 @@
+import java.util.concurrent.RecursiveTask;
+
+public class ChecksumTask extends RecursiveTask<Integer> {
+    /**
+     * Fork/join verification of a range of blocks against their CRC32C.
+     * Ranges are split in half until they are small enough to check
+     * directly. Returns the lowest bad block index, or ALL_GOOD.
+     */
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int ALL_GOOD = Integer.MAX_VALUE;
+    // blocks checked without splitting any further
+    public static final int THRESHOLD = 8;
+
+    private byte[][] ldisk;
+    private int[] checksums;
+    private int from;
+    private int to;
+
+    public ChecksumTask(byte[][] ldisk, int[] checksums, int from, int to) {
+        this.ldisk = ldisk;
+        this.checksums = checksums;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected Integer compute() {
+        if (this.to - this.from <= THRESHOLD) {
+            for (int i=this.from; i < this.to; i++) {
+                if (BlockChecksums.compute(this.ldisk[i]) != this.checksums[i]) {
+                    return i;
+                }
+            }
+            return ALL_GOOD;
+        }
+        int mid = (this.from + this.to) >>> 1;
+        ChecksumTask left = new ChecksumTask(this.ldisk, this.checksums, this.from, mid);
+        ChecksumTask right = new ChecksumTask(this.ldisk, this.checksums, mid, this.to);
+        left.fork();
+        int rightBad = right.compute();
+        int leftBad = left.join();
+        return Math.min(leftBad, rightBad);
+    }
+}
@@ -0,0 +1,89 @@
+public class CodecBench {
+    /**
+     * Quick microbenchmark of FieldCodec against the shift loops Utils
+     * used to pack integers with. There is no build to hang JMH off, so
+     * this does the usual by hand: warm up first, then time a few rounds
+     * of packing and unpacking every int slot of a block and keep a
+     * checksum around so the JIT can't throw the work away.
+     * 
+     * Run with: java CodecBench
+     */
+
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 2000000;
+
+    private static int checksum;
+
+    // the original Utils.intPack / intUnpack
+    static void shiftPack(byte[] arr, int val, int loc) {
+        final int MASK = 0xff;
+        for (int i = 3; i >= 0; i--) {
+            arr[loc + i] = (byte) (val & MASK);
+            val = val >> 8;
+        }
+    }
+
+    static int shiftUnpack(byte[] arr, int loc) {
+        final int MASK = 0xff;
+        int v = (int) arr[loc] & MASK;
+        for (int i = 1; i < 4; i++) {
+            v = v << 8;
+            v = v | ((int) arr[loc + i] & MASK);
+        }
+        return v;
+    }
+
+    static long runShift(byte[] block) {
+        long start = System.nanoTime();
+        int sum = 0;
+        for (int n = 0; n < ITERATIONS; n++) {
+            for (int loc = 0; loc < IO.BLOCK_SIZE; loc += 4) {
+                shiftPack(block, n + loc, loc);
+                sum += shiftUnpack(block, loc);
+            }
+        }
+        checksum += sum;
+        return System.nanoTime() - start;
+    }
+
+    static long runVarHandle(byte[] block) {
+        long start = System.nanoTime();
+        int sum = 0;
+        for (int n = 0; n < ITERATIONS; n++) {
+            for (int loc = 0; loc < IO.BLOCK_SIZE; loc += 4) {
+                FieldCodec.putInt(block, loc, n + loc);
+                sum += FieldCodec.getInt(block, loc);
+            }
+        }
+        checksum += sum;
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        byte[] block = new byte[IO.BLOCK_SIZE];
+
+        // both encodings have to agree byte for byte
+        byte[] other = new byte[IO.BLOCK_SIZE];
+        for (int loc = 0; loc < IO.BLOCK_SIZE; loc += 4) {
+            shiftPack(block, -loc * 7919, loc);
+            FieldCodec.putInt(other, loc, -loc * 7919);
+        }
+        if (!java.util.Arrays.equals(block, other)) {
+            System.out.println("**ENCODINGS DIFFER");
+            return;
+        }
+
+        // warm up
+        runShift(block);
+        runVarHandle(block);
+
+        long ops = (long) ITERATIONS * (IO.BLOCK_SIZE / 4) * 2;
+        for (int r = 0; r < ROUNDS; r++) {
+            long shift = runShift(block);
+            long view = runVarHandle(block);
+            System.out.printf("round %d: shift %.2f ns/op, varhandle %.2f ns/op (%.1fx)%n",
+                    r, (double) shift / ops, (double) view / ops, (double) shift / view);
+        }
+        System.out.println("checksum " + checksum);
+    }
+}
@@ -0,0 +1,7 @@
+public interface CommandHandler {
+    /**
+     * One entry of the Driver's dispatch table. Answers the parsed
+     * command into out, leaving it empty for no output.
+     */
+    void run(CommandLine line, ResponseBuffer out);
+}
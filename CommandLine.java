@@ -0,0 +1,147 @@
+public class CommandLine {
+    /**
+     * One Driver command tokenized in place. Tokens are offsets into the
+     * caller's buffer, nothing is copied, so a single CommandLine can be
+     * reused for every line of a replay. Splits the way trim() followed
+     * by split(" ") does on the String path: runs of spaces give empty
+     * tokens (a trimmed line never has trailing ones).
+     */
+
+    // no command takes more than 4 tokens, longer lines are only counted
+    public static final int MAX_TOKENS = 8;
+    public static final int NO_HANDLE = -1;
+
+    private byte[] buf;
+    private int start;
+    private int end;
+    private int count;
+    private int[] tokenStarts = new int[MAX_TOKENS];
+    private int[] tokenEnds = new int[MAX_TOKENS];
+
+    public void parse(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.start = offset;
+        this.end = offset + length;
+        this.count = 0;
+
+        // same as String.trim(), everything up to ' ' goes
+        while (this.start < this.end && (buf[this.start] & 0xFF) <= ' ') {
+            this.start++;
+        }
+        while (this.end > this.start && (buf[this.end - 1] & 0xFF) <= ' ') {
+            this.end--;
+        }
+        if (this.start == this.end) {
+            return;
+        }
+
+        int tokenStart = this.start;
+        for (int i=this.start; i <= this.end; i++) {
+            if (i == this.end || buf[i] == ' ') {
+                if (this.count < MAX_TOKENS) {
+                    this.tokenStarts[this.count] = tokenStart;
+                    this.tokenEnds[this.count] = i;
+                }
+                this.count++;
+                tokenStart = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Length of the trimmed line
+     */
+    public int getLength() {
+        return this.end - this.start;
+    }
+
+    public int getTokenCount() {
+        return this.count;
+    }
+
+    /**
+     * First two bytes of the line packed into an int, the way
+     * handle(...) packs a command name, NO_HANDLE if the line is shorter
+     */
+    public int getHandle() {
+        if (this.getLength() < 2) {
+            return NO_HANDLE;
+        }
+        return handle(this.buf[this.start], this.buf[this.start + 1]);
+    }
+
+    public static int handle(String name) {
+        return handle((byte) name.charAt(0), (byte) name.charAt(1));
+    }
+
+    private static int handle(byte first, byte second) {
+        return ((first & 0xFF) << 8) | (second & 0xFF);
+    }
+
+    public byte[] getBuffer() {
+        return this.buf;
+    }
+
+    public int tokenOffset(int token) {
+        return this.tokenStarts[token];
+    }
+
+    public int tokenLength(int token) {
+        return this.tokenEnds[token] - this.tokenStarts[token];
+    }
+
+    /**
+     * Copies at most dst.length bytes of the token, returns how many
+     */
+    public int copyToken(int token, byte[] dst) {
+        int length = Math.min(this.tokenLength(token), dst.length);
+        System.arraycopy(this.buf, this.tokenStarts[token], dst, 0, length);
+        return length;
+    }
+
+    /**
+     * Integer.parseInt(...) on the token, without building the String.
+     * Throws the same NumberFormatException for bad or out of range input.
+     */
+    public int parseInt(int token) {
+        int pos = this.tokenStarts[token];
+        int tokenEnd = this.tokenEnds[token];
+        if (pos == tokenEnd) {
+            throw new NumberFormatException("For input string: \"\"");
+        }
+        boolean negative = false;
+        // accumulate negatively so MIN_VALUE fits
+        int limit = -Integer.MAX_VALUE;
+        if (this.buf[pos] == '-' || this.buf[pos] == '+') {
+            negative = this.buf[pos] == '-';
+            if (negative) {
+                limit = Integer.MIN_VALUE;
+            }
+            pos++;
+            if (pos == tokenEnd) {
+                throw this.numberFormatError(token);
+            }
+        }
+        int result = 0;
+        for (int i=pos; i < tokenEnd; i++) {
+            int digit = this.buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw this.numberFormatError(token);
+            }
+            if (result < limit / 10) {
+                throw this.numberFormatError(token);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw this.numberFormatError(token);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private NumberFormatException numberFormatError(int token) {
+        String input = new String(this.buf, this.tokenStarts[token], this.tokenLength(token));
+        return new NumberFormatException("For input string: \"" + input + "\"");
+    }
+}
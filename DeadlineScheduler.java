@@ -0,0 +1,41 @@
+import java.util.List;
+
+public class DeadlineScheduler implements IOScheduler {
+    /**
+     * Like the Linux deadline elevator: requests are served in SCAN order
+     * unless one has waited past its expiry, then the oldest expired one
+     * goes first. Reads expire sooner than writes because someone is
+     * usually blocked on a read.
+     */
+
+    public static final long READ_EXPIRE_NS = 50000000; // 50 ms
+    public static final long WRITE_EXPIRE_NS = 500000000; // 500 ms
+
+    private ScanScheduler sorted = new ScanScheduler();
+
+    public static long deadlineOf(IORequest request) {
+        long expire = request.isWrite() ? WRITE_EXPIRE_NS : READ_EXPIRE_NS;
+        return request.getArrival() + expire;
+    }
+
+    @Override
+    public int next(List<IORequest> pending, int head, long now) {
+        int expired = -1;
+        for (int i=0; i < pending.size(); i++) {
+            long deadline = deadlineOf(pending.get(i));
+            if (deadline <= now && (expired == -1 
+                    || deadline < deadlineOf(pending.get(expired)))) {
+                expired = i;
+            }
+        }
+        if (expired != -1) {
+            return expired;
+        }
+        return this.sorted.next(pending, head, now);
+    }
+
+    @Override
+    public String getName() {
+        return "deadline";
+    }
+}
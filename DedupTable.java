@@ -0,0 +1,125 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class DedupTable {
+    /**
+     * Content addressed block table for IO. Blocks with identical contents
+     * share one array, reference counted so it can be dropped once the
+     * last block pointing at it is overwritten. Shared arrays are never
+     * modified in place, IO treats them exactly like snapshot blocks
+     * (copy on read, replace on write).
+     */
+
+    private HashMap<BlockKey, Entry> table;
+
+    // stats for judging whether the hashing is worth it
+    private long writes;
+    private long hashNanos;
+    private int references;
+
+    public DedupTable() {
+        this.table = new HashMap<BlockKey, Entry>();
+    }
+
+    /**
+     * returns the canonical array for these contents, which may be the
+     * block handed in if we have not seen the contents before
+     */
+    public byte[] intern(byte[] block) {
+        long start = System.nanoTime();
+        BlockKey key = new BlockKey(block);
+        Entry entry = this.table.get(key);
+        if (entry == null) {
+            entry = new Entry(block);
+            this.table.put(key, entry);
+        }
+        entry.refs++;
+        this.hashNanos += System.nanoTime() - start;
+        this.writes++;
+        this.references++;
+        return entry.data;
+    }
+
+    /**
+     * drop one reference to a canonical array handed out by intern(...)
+     */
+    public void release(byte[] block) {
+        BlockKey key = new BlockKey(block);
+        Entry entry = this.table.get(key);
+        if (entry == null) {
+            return;
+        }
+        entry.refs--;
+        this.references--;
+        if (entry.refs == 0) {
+            this.table.remove(key);
+        }
+    }
+
+    public int getUniqueBlocks() {
+        return this.table.size();
+    }
+
+    public int getReferences() {
+        return this.references;
+    }
+
+    /**
+     * blocks stored per unique block, 1.0 means nothing was shared
+     */
+    public double getDedupRatio() {
+        if (this.table.isEmpty()) {
+            return 1.0;
+        }
+        return (double) this.references / this.table.size();
+    }
+
+    public long getHashNanosPerWrite() {
+        if (this.writes == 0) {
+            return 0;
+        }
+        return this.hashNanos / this.writes;
+    }
+
+    public String report() {
+        return String.format("%d blocks -> %d unique, ratio %.2f, %d ns hashing per write",
+                this.references, this.table.size(), this.getDedupRatio(),
+                this.getHashNanosPerWrite());
+    }
+
+    private static class Entry {
+        byte[] data;
+        int refs;
+
+        Entry(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * byte[] uses identity for equals/hashCode, wrap it to key by contents
+     */
+    private static class BlockKey {
+        private final byte[] data;
+        private final int hash;
+
+        BlockKey(byte[] data) {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey key = (BlockKey) other;
+            return (this.hash == key.hash && Arrays.equals(this.data, key.data));
+        }
+    }
+}
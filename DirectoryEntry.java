@@ -0,0 +1,29 @@
+public class DirectoryEntry {
+    /**
+     * One live slot of the directory file, along with the metadata of the
+     * descriptor it points to. Handed out by FileSystem.listDirectory(...)
+     * so callers can see file sizes without having to open every file.
+     */
+
+    private String name;
+    private int descNumb;
+    private int length;
+
+    public DirectoryEntry(String name, int descNumb, int length) {
+        this.name = name;
+        this.descNumb = descNumb;
+        this.length = length;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getDescriptorNumb() {
+        return this.descNumb;
+    }
+
+    public int getFileLength() {
+        return this.length;
+    }
+}
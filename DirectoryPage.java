@@ -0,0 +1,40 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class DirectoryPage {
+    /**
+     * A bounded chunk of the directory listing. The next token is opaque to
+     * the caller, just hand it back to FileSystem.listDirectory(...) to
+     * continue where this page left off. END_TOKEN means we are done.
+     */
+
+    public static final int END_TOKEN = -1;
+
+    private List<DirectoryEntry> entries;
+    private int nextToken;
+
+    public DirectoryPage(int capacity) {
+        this.entries = new ArrayList<DirectoryEntry>(capacity);
+        this.nextToken = END_TOKEN;
+    }
+
+    public void add(DirectoryEntry entry) {
+        this.entries.add(entry);
+    }
+
+    public void setNextToken(int nextToken) {
+        this.nextToken = nextToken;
+    }
+
+    public List<DirectoryEntry> getEntries() {
+        return this.entries;
+    }
+
+    public int getNextToken() {
+        return this.nextToken;
+    }
+
+    public boolean isLast() {
+        return (this.nextToken == END_TOKEN);
+    }
+}
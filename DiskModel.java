@@ -0,0 +1,70 @@
+public class DiskModel {
+    /**
+     * Cost model of a spinning disk, used by SimulatedDisk. Blocks are
+     * laid out blocksPerTrack to a track. A seek costs the settle time
+     * plus a share of the full stroke that grows with the square root of
+     * the distance. The platter keeps turning whatever the head does, so
+     * rotational delay depends on the virtual clock. Transfer is one
+     * sector time per block. All times are in nanoseconds.
+     */
+
+    public static final int DEFAULT_BLOCKS_PER_TRACK = 8;
+    public static final long DEFAULT_SETTLE_NS = 500000; // 0.5 ms
+    public static final long DEFAULT_FULL_STROKE_NS = 8000000; // 8 ms
+    public static final long DEFAULT_RPM = 7200;
+
+    private int blocksPerTrack;
+    private long settleNs;
+    private long fullStrokeNs;
+    private long revolutionNs;
+
+    public DiskModel() {
+        this(DEFAULT_BLOCKS_PER_TRACK, DEFAULT_SETTLE_NS, DEFAULT_FULL_STROKE_NS, DEFAULT_RPM);
+    }
+
+    public DiskModel(int blocksPerTrack, long settleNs, long fullStrokeNs, long rpm) {
+        this.blocksPerTrack = blocksPerTrack;
+        this.settleNs = settleNs;
+        this.fullStrokeNs = fullStrokeNs;
+        this.revolutionNs = 60L * 1000000000L / rpm;
+    }
+
+    public int trackOf(int blockIndex) {
+        return blockIndex / this.blocksPerTrack;
+    }
+
+    public int getTracks() {
+        return (IO.LDISK_SIZE + this.blocksPerTrack - 1) / this.blocksPerTrack;
+    }
+
+    public long seekTime(int fromBlock, int toBlock) {
+        int distance = Math.abs(this.trackOf(toBlock) - this.trackOf(fromBlock));
+        if (distance == 0) {
+            return 0;
+        }
+        double share = Math.sqrt((double) distance / Math.max(1, this.getTracks() - 1));
+        return this.settleNs + (long) ((this.fullStrokeNs - this.settleNs) * share);
+    }
+
+    public long sectorTime() {
+        return this.revolutionNs / this.blocksPerTrack;
+    }
+
+    /**
+     * wait at time now until the start of the block's sector comes round
+     */
+    public long rotationalDelay(int blockIndex, long now) {
+        long sector = this.sectorTime();
+        long into = now % this.revolutionNs;
+        long target = (blockIndex % this.blocksPerTrack) * sector;
+        long delay = target - into;
+        if (delay < 0) {
+            delay += this.revolutionNs;
+        }
+        return delay;
+    }
+
+    public long transferTime(int count) {
+        return count * this.sectorTime();
+    }
+}
@@ -2,7 +2,10 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 // Lucas Ou-Yang
 // #27404511
@@ -16,15 +19,28 @@ public class Driver {
     
     public static final String ERROR_OUTPUT = "error";
     public static final String FAIL_MSG = "ERROR COMMAND ";
+    public static final String INIT_OUTPUT = "disk initialized";
+    
+    // handles are two lowercase letters, one table slot per pair
+    private static final int HANDLER_SLOTS = 26 * 26;
+    private static final int FILENAME_BYTES = 4;
     
     FileSystem fileSystem;
     String outputFile;
     String inputFile = 
         "/Users/lucas/Dropbox/coding/java_space/CS143B_FileSystems/src/tests/exam.txt";
     
+    // state of the byte level path, reused for every command
+    private CommandLine line = new CommandLine();
+    private CommandHandler[] handlers = new CommandHandler[HANDLER_SLOTS];
+    // names[n] carries every filename of n bytes
+    private byte[][] names = new byte[FILENAME_BYTES + 1][];
+    private byte[] data = new byte[FileSystem.MAX_FILESIZE];
+    
     public Driver() {
         outputFile = inputFile + ".OUTPUT";
         this.fileSystem = new FileSystem();
+        this.registerHandlers();
     }
     
     /**
@@ -33,6 +49,36 @@ public class Driver {
     public Driver(String inputFile, String outputFile) {
         this.inputFile = inputFile;
         this.outputFile = outputFile;
+        this.registerHandlers();
+    }
+    
+    private void registerHandlers() {
+        for (int i=0; i < this.names.length; i++) {
+            this.names[i] = new byte[i];
+        }
+        this.register("cr", this::create);
+        this.register("de", this::destroy);
+        this.register("op", this::open);
+        this.register("cl", this::close);
+        this.register("rd", this::read);
+        this.register("wr", this::write);
+        this.register("sk", this::seek);
+    }
+    
+    private void register(String name, CommandHandler handler) {
+        this.handlers[handlerSlot(CommandLine.handle(name))] = handler;
+    }
+    
+    private static int handlerSlot(int handle) {
+        if (handle == CommandLine.NO_HANDLE) {
+            return -1;
+        }
+        int first = (handle >> 8) - 'a';
+        int second = (handle & 0xFF) - 'a';
+        if (first < 0 || first >= 26 || second < 0 || second >= 26) {
+            return -1;
+        }
+        return first * 26 + second;
     }
     
     public byte[] stringToBytes(String input, int size) {
@@ -54,6 +100,20 @@ public class Driver {
         out.close();
     }
     
+    /**
+     * the old disk is thrown away, its block store is recycled
+     */
+    private void releaseVolume() {
+        if (this.fileSystem == null) {
+            return;
+        }
+        try {
+            this.fileSystem.release();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
     public String feedLine(String input) {
         if (input == null) {
             return "";
@@ -68,8 +128,9 @@ public class Driver {
         
         // sometimes we want to restart the entire system
         if (input.equals("in")) {
+            this.releaseVolume();
             this.fileSystem = new FileSystem();
-            return "disk initialized";
+            return INIT_OUTPUT;
         }
         
         // commands are 2 chars
@@ -163,6 +224,99 @@ public class Driver {
             String output = this.fileSystem.ls();
             return output;
         }
+        else if (handle.equals("dr") && chunkedInput.length == 3) {
+            // paged listing: "dr <token> <count>", prints name:length:desc
+            int token = Integer.parseInt(chunkedInput[1]);
+            int count = Integer.parseInt(chunkedInput[2]);
+            DirectoryPage page = this.fileSystem.listDirectory(token, count);
+            
+            StringBuilder sb = new StringBuilder();
+            for (DirectoryEntry entry : page.getEntries()) {
+                sb.append(entry.getName()).append(":")
+                  .append(entry.getFileLength()).append(":")
+                  .append(entry.getDescriptorNumb()).append(" ");
+            }
+            if (page.isLast()) {
+                sb.append("end");
+            }
+            else {
+                sb.append("next ").append(page.getNextToken());
+            }
+            return sb.toString();
+        }
+        else if (handle.equals("mt") && chunkedInput.length == 3) {
+            // "mt <file> <none|through|back|close>" attaches a volume file
+            String filename = chunkedInput[1];
+            DurabilityMode mode = DurabilityMode.fromName(chunkedInput[2]);
+            if (mode == null) {
+                return ERROR_OUTPUT;
+            }
+            try {
+                this.fileSystem.attachVolume(filename, mode);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return ERROR_OUTPUT;
+            }
+            return filename + " mounted";
+        }
+        else if (handle.equals("al") && chunkedInput.length == 2) {
+            // "al <first|next|best|near>" picks the block allocation policy
+            AllocationPolicy allocator = AllocationPolicy.fromName(chunkedInput[1]);
+            if (allocator == null) {
+                return ERROR_OUTPUT;
+            }
+            this.fileSystem.setAllocationPolicy(allocator);
+            return "allocation " + allocator.getName();
+        }
+        else if (handle.equals("sy") && chunkedInput.length == 1) {
+            try {
+                this.fileSystem.sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return ERROR_OUTPUT;
+            }
+            return "disk synced";
+        }
+        else if (handle.equals("im") && chunkedInput.length == 3) {
+            // "im <host file> <name>"
+            String filename = chunkedInput[2];
+            byte[] byteFilename = stringToBytes(filename, 4);
+            try {
+                int status = this.fileSystem.importFile(chunkedInput[1], byteFilename);
+                if (status == FileSystem.COMMAND_FAIL) {
+                    return ERROR_OUTPUT;
+                }
+                return Integer.toString(status) + " bytes imported";
+            } catch (IOException e) {
+                e.printStackTrace();
+                return ERROR_OUTPUT;
+            }
+        }
+        else if (handle.equals("ex") && chunkedInput.length == 3) {
+            // "ex <name> <host file>"
+            byte[] byteFilename = stringToBytes(chunkedInput[1], 4);
+            try {
+                int status = this.fileSystem.exportFile(byteFilename, chunkedInput[2]);
+                if (status == FileSystem.COMMAND_FAIL) {
+                    return ERROR_OUTPUT;
+                }
+                return Integer.toString(status) + " bytes exported";
+            } catch (IOException e) {
+                e.printStackTrace();
+                return ERROR_OUTPUT;
+            }
+        }
+        else if (handle.equals("df") && chunkedInput.length == 1) {
+            return this.fileSystem.statfs().toString();
+        }
+        else if (handle.equals("dg") && chunkedInput.length == 2) {
+            // "dg <blocks>" defragments, moving at most that many blocks
+            int budget = Integer.parseInt(chunkedInput[1]);
+            FragmentationReport before = this.fileSystem.fragmentation();
+            int moved = this.fileSystem.defragment(budget);
+            FragmentationReport after = this.fileSystem.fragmentation();
+            return "moved " + moved + " blocks, before: " + before + ", after: " + after;
+        }
         else if (handle.equals("in") && (chunkedInput.length == 2 || 
                 chunkedInput.length == 1)) {
             
@@ -184,9 +338,240 @@ public class Driver {
             }
             return "disk saved";
         }
+        else if (handle.equals("sv") && chunkedInput.length == 3) {
+            // "sv <file> <level>" writes a compressed image
+            String filename = chunkedInput[1];
+            int level = Integer.parseInt(chunkedInput[2]);
+            try {
+                int status = this.fileSystem.saveCompressed(filename, level);
+                if (status == FileSystem.COMMAND_FAIL) {
+                    return ERROR_OUTPUT;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return ERROR_OUTPUT;
+            }
+            return "disk saved";
+        }
         return ERROR_OUTPUT;
     }
     
+    /**
+     * Byte level twin of feedLine(String): parses the command straight
+     * out of buf and answers into out, which is cleared first. The file
+     * commands cr de op cl rd wr sk go through the dispatch table and
+     * allocate nothing; the rarer ones fall back to feedLine(String).
+     * Nothing is echoed to System.out here, and rd answers with the raw
+     * bytes of the file. A number that does not parse answers error.
+     */
+    public void feedLine(byte[] buf, int offset, int length, ResponseBuffer out) {
+        out.clear();
+        this.line.parse(buf, offset, length);
+        if (this.line.getLength() == 0) {
+            return;
+        }
+        int handle = this.line.getHandle();
+        // fail, not enough chars
+        if (handle == CommandLine.NO_HANDLE) {
+            return;
+        }
+        int slot = handlerSlot(handle);
+        CommandHandler handler = slot == -1 ? null : this.handlers[slot];
+        try {
+            if (handler == null) {
+                out.append(this.feedLine(new String(buf, offset, length)));
+                return;
+            }
+            handler.run(this.line, out);
+        } catch (NumberFormatException e) {
+            // a bad number fails this line only, a replay carries on
+            out.clear();
+            out.append(ERROR_OUTPUT);
+        }
+    }
+    
+    /**
+     * The filename token cut to 4 bytes like stringToBytes(...), in
+     * a shared array that is only good until the next command
+     */
+    private byte[] filename(CommandLine line, int token) {
+        byte[] name = this.names[Math.min(line.tokenLength(token), FILENAME_BYTES)];
+        line.copyToken(token, name);
+        return name;
+    }
+    
+    private void appendToken(CommandLine line, int token, ResponseBuffer out) {
+        out.append(line.getBuffer(), line.tokenOffset(token), line.tokenLength(token));
+    }
+    
+    private void create(CommandLine line, ResponseBuffer out) {
+        if (line.getTokenCount() != 2) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        int status = this.fileSystem.create(this.filename(line, 1));
+        if (status != FileSystem.COMMAND_SUCCEED) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        this.appendToken(line, 1, out);
+        out.append(" created");
+    }
+    
+    private void destroy(CommandLine line, ResponseBuffer out) {
+        if (line.getTokenCount() != 2) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        int status = this.fileSystem.destroy(this.filename(line, 1));
+        if (status != FileSystem.COMMAND_SUCCEED) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        this.appendToken(line, 1, out);
+        out.append(" destroyed");
+    }
+    
+    private void open(CommandLine line, ResponseBuffer out) {
+        if (line.getTokenCount() != 2) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        int oftIndex = this.fileSystem.open(this.filename(line, 1));
+        if (oftIndex == FileSystem.COMMAND_FAIL) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        this.appendToken(line, 1, out);
+        out.append(" opened ");
+        out.appendInt(oftIndex);
+    }
+    
+    private void close(CommandLine line, ResponseBuffer out) {
+        if (line.getTokenCount() != 2) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        int oftIndex = line.parseInt(1);
+        int status = this.fileSystem.close(oftIndex);
+        if (status != FileSystem.COMMAND_SUCCEED) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        out.appendInt(oftIndex);
+        out.append(" closed");
+    }
+    
+    private void read(CommandLine line, ResponseBuffer out) {
+        if (line.getTokenCount() != 3) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        int oftIndex = line.parseInt(1);
+        int countBytes = line.parseInt(2);
+        // no file holds more than data.length bytes
+        countBytes = Math.min(countBytes, this.data.length);
+        int count = this.fileSystem.readFile(oftIndex, this.data, 0, countBytes);
+        if (count == 0) {
+            out.append("\r\n");
+            return;
+        }
+        out.append(this.data, 0, count);
+    }
+    
+    private void write(CommandLine line, ResponseBuffer out) {
+        if (line.getTokenCount() != 4 || line.tokenLength(2) == 0) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        int oftIndex = line.parseInt(1);
+        byte character = line.getBuffer()[line.tokenOffset(2)];
+        int count = line.parseInt(3);
+        if (count < 0) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        // writes stop at MAX_FILESIZE anyway
+        count = Math.min(count, this.data.length);
+        Arrays.fill(this.data, 0, count, character);
+        int status = this.fileSystem.writeFile(oftIndex, this.data, 0, count);
+        if (status == FileSystem.COMMAND_FAIL) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        out.appendInt(status);
+        out.append(" bytes written");
+    }
+    
+    private void seek(CommandLine line, ResponseBuffer out) {
+        if (line.getTokenCount() != 3) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        int oftIndex = line.parseInt(1);
+        int position = line.parseInt(2);
+        int status = this.fileSystem.lseek(oftIndex, position);
+        if (status != FileSystem.COMMAND_SUCCEED) {
+            out.append(ERROR_OUTPUT);
+            return;
+        }
+        out.append("position is ");
+        out.appendInt(position);
+    }
+    
+    /**
+     * Streams every line of in through feedLine(byte[], ...) and lays
+     * the answers out in out the way runFile() does, minus the debug
+     * dump. Only the buffers grow, nothing is allocated per line.
+     */
+    public void replay(InputStream in, OutputStream out) throws IOException {
+        byte[] chunk = new byte[8192];
+        ResponseBuffer response = new ResponseBuffer();
+        ResponseBuffer pending = new ResponseBuffer();
+        int filled = 0;
+        int scanned = 0;
+        int read;
+        
+        while ((read = in.read(chunk, filled, chunk.length - filled)) != -1) {
+            filled += read;
+            int lineStart = 0;
+            for (int i=scanned; i < filled; i++) {
+                if (chunk[i] == '\n') {
+                    this.feedLine(chunk, lineStart, i - lineStart, response);
+                    this.appendReplayed(response, pending);
+                    lineStart = i + 1;
+                }
+            }
+            // keep the unfinished line, grow if it fills the chunk
+            filled -= lineStart;
+            System.arraycopy(chunk, lineStart, chunk, 0, filled);
+            scanned = filled;
+            if (filled == chunk.length) {
+                chunk = Arrays.copyOf(chunk, chunk.length * 2);
+            }
+            if (pending.size() >= chunk.length) {
+                pending.writeTo(out);
+                pending.clear();
+            }
+        }
+        if (filled > 0) {
+            this.feedLine(chunk, 0, filled, response);
+            this.appendReplayed(response, pending);
+        }
+        pending.writeTo(out);
+        out.flush();
+    }
+    
+    private void appendReplayed(ResponseBuffer response, ResponseBuffer pending) {
+        if (response.contentEquals(INIT_OUTPUT)) {
+            pending.append("\r\n");
+        }
+        pending.append(response.getBytes(), 0, response.size());
+        if (response.size() != 0) {
+            pending.append("\r\n");
+        }
+    }
+    
     public void runFile() throws IOException {
         StringBuilder sb = new StringBuilder();
         BufferedReader br = new BufferedReader(
@@ -196,7 +581,7 @@ public class Driver {
         while ((line = br.readLine()) != null) {
             String output = this.feedLine(line);
             System.out.println(">>>>>>>>> " + output); 
-            if (output.equals("disk initialized")) {
+            if (output.equals(INIT_OUTPUT)) {
                 sb.append("\r\n");
             }
             
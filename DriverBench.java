@@ -0,0 +1,147 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DriverBench {
+    /**
+     * Replays the same stream of file commands through feedLine(String)
+     * and through the byte level feedLine(byte[], ...), printing the time
+     * and the bytes allocated per command. The String path echoes every
+     * command, System.out is swapped for a sink while it runs so only the
+     * parsing and the file system work are measured. The parse only rows
+     * leave the file system out to show what the tokenizer itself costs.
+     *
+     * Run with: java DriverBench
+     */
+
+    private static final String[] FILES = { "a", "bb", "ccc", "dddd" };
+    private static final int ROUNDS = 200000;
+    private static final int WARMUP_ROUNDS = 20000;
+
+    public static void main(String[] args) {
+        List<String> script = script(ROUNDS);
+        byte[][] lines = new byte[script.size()][];
+        for (int i=0; i < lines.length; i++) {
+            lines[i] = script.get(i).getBytes();
+        }
+        PrintStream console = System.out;
+        System.out.printf("%-18s %12s %14s%n", "path", "ns/command", "bytes/command");
+
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        runStrings(script.subList(0, WARMUP_ROUNDS));
+        long[] strings = runStrings(script);
+        System.setOut(console);
+        print("feedLine(String)", strings, script.size());
+
+        runBytes(lines, WARMUP_ROUNDS);
+        print("feedLine(byte[])", runBytes(lines, lines.length), lines.length);
+
+        parseStrings(script);
+        print("parse String", parseStrings(script), script.size());
+        parseBytes(lines);
+        print("parse byte[]", parseBytes(lines), lines.length);
+    }
+
+    /**
+     * Open, write, rewind, read back and close each file in turn
+     */
+    private static List<String> script(int rounds) {
+        List<String> script = new ArrayList<String>();
+        for (String name : FILES) {
+            script.add("cr " + name);
+        }
+        for (int i=0; i < rounds; i++) {
+            String name = FILES[i % FILES.length];
+            char character = (char) ('a' + i % 26);
+            script.add("op " + name);
+            script.add("wr 1 " + character + " " + (1 + i % 96));
+            script.add("sk 1 0");
+            script.add("rd 1 " + (1 + i % 96));
+            script.add("cl 1");
+        }
+        return script;
+    }
+
+    private static long[] runStrings(List<String> script) {
+        Driver driver = new Driver();
+        long checksum = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (String line : script) {
+            checksum += driver.feedLine(line).length();
+        }
+        return new long[] { System.nanoTime() - start, allocatedBytes() - bytes, checksum };
+    }
+
+    private static long[] runBytes(byte[][] lines, int count) {
+        Driver driver = new Driver();
+        ResponseBuffer out = new ResponseBuffer();
+        long checksum = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i=0; i < count; i++) {
+            driver.feedLine(lines[i], 0, lines[i].length, out);
+            checksum += out.size();
+        }
+        return new long[] { System.nanoTime() - start, allocatedBytes() - bytes, checksum };
+    }
+
+    private static long[] parseStrings(List<String> script) {
+        long checksum = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (String line : script) {
+            // what feedLine(String) does before it reaches the file system
+            String input = line.trim();
+            String handle = input.substring(0, 2);
+            String[] chunkedInput = input.split(" ");
+            if (handle.equals("cr") || handle.equals("op")) {
+                checksum += chunkedInput[1].getBytes().length;
+            }
+            else {
+                checksum += Integer.parseInt(chunkedInput[1]);
+            }
+        }
+        return new long[] { System.nanoTime() - start, allocatedBytes() - bytes, checksum };
+    }
+
+    private static long[] parseBytes(byte[][] lines) {
+        CommandLine line = new CommandLine();
+        byte[] name = new byte[4];
+        int create = CommandLine.handle("cr");
+        int open = CommandLine.handle("op");
+        long checksum = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i=0; i < lines.length; i++) {
+            line.parse(lines[i], 0, lines[i].length);
+            int handle = line.getHandle();
+            if (handle == create || handle == open) {
+                checksum += line.copyToken(1, name);
+            }
+            else {
+                checksum += line.parseInt(1);
+            }
+        }
+        return new long[] { System.nanoTime() - start, allocatedBytes() - bytes, checksum };
+    }
+
+    private static void print(String path, long[] result, int commands) {
+        System.out.printf("%-18s %12.1f %14.1f%n", path, (double) result[0] / commands,
+                (double) result[1] / commands);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,36 @@
+public enum DurabilityMode {
+    /**
+     * How eagerly a volume attached to a file (see VolumeFile) pushes
+     * changes out to it, and how hard it makes the OS commit them.
+     */
+
+    // only sv writes anything out, the original behaviour
+    NONE,
+    // every create / destroy / write / close is synced and forced
+    // (FileChannel.force(true)) before it returns
+    WRITE_THROUGH,
+    // a background flusher syncs every interval or once enough blocks are
+    // dirty, forcing data only (FileChannel.force(false))
+    WRITE_BACK,
+    // nothing goes out until a file is closed, then sync and force(true)
+    FSYNC_ON_CLOSE;
+
+    /**
+     * driver spelling: none, through, back, close
+     */
+    public static DurabilityMode fromName(String name) {
+        if (name.equals("none")) {
+            return NONE;
+        }
+        else if (name.equals("through")) {
+            return WRITE_THROUGH;
+        }
+        else if (name.equals("back")) {
+            return WRITE_BACK;
+        }
+        else if (name.equals("close")) {
+            return FSYNC_ON_CLOSE;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,24 @@
+import java.util.List;
+
+public class FifoScheduler implements IOScheduler {
+    /**
+     * In arrival order, the baseline every other scheduler is measured
+     * against.
+     */
+
+    @Override
+    public int next(List<IORequest> pending, int head, long now) {
+        int first = 0;
+        for (int i=1; i < pending.size(); i++) {
+            if (pending.get(i).getArrival() < pending.get(first).getArrival()) {
+                first = i;
+            }
+        }
+        return first;
+    }
+
+    @Override
+    public String getName() {
+        return "fifo";
+    }
+}
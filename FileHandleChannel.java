@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+public class FileHandleChannel implements SeekableByteChannel {
+    /**
+     * SeekableByteChannel over a file opened with FileSystem.open(...).
+     * Heap buffers are read into and written from directly through their
+     * backing array, direct buffers go through one block sized scratch
+     * array owned by the channel, so no call allocates. Closing the
+     * channel closes the handle.
+     */
+
+    private FileSystem fs;
+    private int oftIndex;
+    private byte[] scratch;
+    private boolean open;
+
+    public FileHandleChannel(FileSystem fs, int oftIndex) {
+        if (!fs.isOpen(oftIndex)) {
+            throw new IllegalArgumentException("no open file at index " + oftIndex);
+        }
+        this.fs = fs;
+        this.oftIndex = oftIndex;
+        this.open = true;
+    }
+
+    public int getOFTIndex() {
+        return this.oftIndex;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private byte[] scratch() {
+        if (this.scratch == null) {
+            this.scratch = new byte[IO.BLOCK_SIZE];
+        }
+        return this.scratch;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        this.ensureOpen();
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        int count;
+        if (dst.hasArray()) {
+            int offset = dst.arrayOffset() + dst.position();
+            count = this.fs.readFile(this.oftIndex, dst.array(), offset, dst.remaining());
+            dst.position(dst.position() + count);
+        }
+        else {
+            byte[] buf = this.scratch();
+            count = 0;
+            while (dst.hasRemaining()) {
+                int got = this.fs.readFile(this.oftIndex, buf, 0, Math.min(buf.length, dst.remaining()));
+                if (got == 0) {
+                    break;
+                }
+                dst.put(buf, 0, got);
+                count += got;
+            }
+        }
+        // end of file
+        return (count == 0) ? -1 : count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        this.ensureOpen();
+        if (this.fs.isReadOnly()) {
+            throw new NonWritableChannelException();
+        }
+        int count = 0;
+        if (src.hasArray()) {
+            int offset = src.arrayOffset() + src.position();
+            count = this.checkWritten(this.fs.writeFile(this.oftIndex, src.array(), offset, src.remaining()));
+            src.position(src.position() + count);
+        }
+        else {
+            byte[] buf = this.scratch();
+            while (src.hasRemaining()) {
+                int chunk = Math.min(buf.length, src.remaining());
+                src.get(buf, 0, chunk);
+                int put = this.checkWritten(this.fs.writeFile(this.oftIndex, buf, 0, chunk));
+                count += put;
+                if (put < chunk) {
+                    // give back what did not fit
+                    src.position(src.position() - (chunk - put));
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int checkWritten(int status) throws IOException {
+        if (status == FileSystem.COMMAND_FAIL) {
+            throw new IOException("out of disk space");
+        }
+        return status;
+    }
+
+    @Override
+    public long position() throws IOException {
+        this.ensureOpen();
+        return this.fs.getPosition(this.oftIndex);
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        this.ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        if (newPosition > FileSystem.MAX_FILESIZE
+                || this.fs.lseek(this.oftIndex, (int) newPosition) != FileSystem.COMMAND_SUCCEED) {
+            throw new IOException("position past the maximum file size");
+        }
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        this.ensureOpen();
+        return this.fs.getFileLength(this.oftIndex);
+    }
+
+    /**
+     * files never shrink on this file system, only a size at or past the
+     * current one (a no-op) is accepted
+     */
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        this.ensureOpen();
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size");
+        }
+        if (size < this.fs.getFileLength(this.oftIndex)) {
+            throw new IOException("truncating files is not supported");
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.open) {
+            this.open = false;
+            this.fs.close(this.oftIndex);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+public class FileHandleInputStream extends InputStream {
+    /**
+     * InputStream over a file opened with FileSystem.open(...). Bulk reads
+     * go straight into the caller's array, a block at a time inside the
+     * file system. Closing the stream closes the handle.
+     */
+
+    private FileSystem fs;
+    private int oftIndex;
+    private byte[] single;
+    private boolean open;
+
+    public FileHandleInputStream(FileSystem fs, int oftIndex) {
+        if (!fs.isOpen(oftIndex)) {
+            throw new IllegalArgumentException("no open file at index " + oftIndex);
+        }
+        this.fs = fs;
+        this.oftIndex = oftIndex;
+        this.single = new byte[1];
+        this.open = true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!this.open) {
+            throw new IOException("stream closed");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int count = this.read(this.single, 0, 1);
+        return (count == -1) ? -1 : (this.single[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        this.ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int count = this.fs.readFile(this.oftIndex, b, off, len);
+        return (count == 0) ? -1 : count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        this.ensureOpen();
+        long skipped = Math.min(Math.max(n, 0), this.available());
+        if (skipped > 0) {
+            int position = this.fs.getPosition(this.oftIndex);
+            if (this.fs.lseek(this.oftIndex, position + (int) skipped) != FileSystem.COMMAND_SUCCEED) {
+                // lseek stops short of MAX_FILESIZE, the end of a full
+                // file is only reached by reading up to it
+                this.fs.readFile(this.oftIndex, new byte[(int) skipped], 0, (int) skipped);
+            }
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        this.ensureOpen();
+        int remaining = this.fs.getFileLength(this.oftIndex) - this.fs.getPosition(this.oftIndex);
+        return Math.max(0, remaining);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.open) {
+            this.open = false;
+            this.fs.close(this.oftIndex);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class FileHandleOutputStream extends OutputStream {
+    /**
+     * OutputStream over a file opened with FileSystem.open(...). Bulk
+     * writes are copied straight from the caller's array into the r/w
+     * buffer. Running into MAX_FILESIZE or a full disk is an IOException.
+     * Closing the stream closes the handle.
+     */
+
+    private FileSystem fs;
+    private int oftIndex;
+    private byte[] single;
+    private boolean open;
+
+    public FileHandleOutputStream(FileSystem fs, int oftIndex) {
+        if (!fs.isOpen(oftIndex)) {
+            throw new IllegalArgumentException("no open file at index " + oftIndex);
+        }
+        this.fs = fs;
+        this.oftIndex = oftIndex;
+        this.single = new byte[1];
+        this.open = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.single[0] = (byte) b;
+        this.write(this.single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!this.open) {
+            throw new IOException("stream closed");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        int written = this.fs.writeFile(this.oftIndex, b, off, len);
+        if (written == FileSystem.COMMAND_FAIL) {
+            throw new IOException("write failed, disk full or read-only");
+        }
+        if (written < len) {
+            throw new IOException("file is full, wrote " + written + " of " + len + " bytes");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.open) {
+            this.open = false;
+            this.fs.close(this.oftIndex);
+        }
+    }
+}
@@ -3,6 +3,10 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 // Lucas Ou-Yang
@@ -19,6 +23,7 @@ public class FileSystem {
     public static final int MAX_FILE_BLOCKS = 3;
     public static final int MAX_FILESIZE = 64 * MAX_FILE_BLOCKS;
     public static final int DIRECORY_ENTRY_SIZE = 8;
+    public static final int LS_PAGE_SIZE = 8;
     
     // For serializing our ldisk to file
     public static final String BLOCK_DELIMITER = "\\$\\$";
@@ -32,9 +37,37 @@ public class FileSystem {
     public static final int OUT_OF_MEMORY_ERR = -5;
     public static final int DUPLICATE_FILE_ERR = -99;
     
+    // Small files keep their bytes in the block slots of the descriptor
+    // instead of a data block. Lengths never get near 2^24, so the flag
+    // rides in the length field.
+    public static final int INLINE_FLAG = 1 << 24;
+    public static final int INLINE_CAPACITY = MAX_FILE_BLOCKS * 4;
+    
+    // write-back flusher defaults
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public static final int DEFAULT_DIRTY_THRESHOLD = 16; // blocks
+    // background defragmenter works in slices this long
+    public static final long DEFRAG_SLICE_MS = 100;
+    
     private IO io;
     private OFT oft;
     private BitMap bitmap;
+    // mounted snapshots refuse anything that modifies files
+    private boolean readOnly;
+    // kept up to date on create/destroy so statfs never scans
+    private int freeDescriptors = IO.NUMB_DESCRIPTORS;
+    // where new data blocks go, see AllocationPolicy
+    private AllocationPolicy allocator = new FirstFitPolicy();
+    
+    // File backed volume and how eagerly it is kept up to date. The public
+    // methods are synchronized so the write-back flusher can run alongside.
+    private VolumeFile volume;
+    private DurabilityMode durability = DurabilityMode.NONE;
+    private long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private int dirtyThreshold = DEFAULT_DIRTY_THRESHOLD;
+    private Thread flusher;
+    private Thread defragmenter;
+    private int defragRate;
 
     public FileSystem() {
         this.io = new IO();
@@ -45,6 +78,31 @@ public class FileSystem {
         this.bitmap.setOne(0);
     }
     
+    /**
+     * Read-only mount of a snapshot. The mount gets its own copy-on-write
+     * view so buffer flushes from reads never reach the frozen blocks.
+     */
+    public FileSystem(Snapshot snapshot) {
+        this.io = snapshot.getIO().snapshot();
+        this.bitmap = snapshot.getBitMap().copy();
+        this.oft = new OFT(this.io, this.bitmap);
+        this.readOnly = true;
+        
+        // nothing is open in a fresh mount
+        for (int i=1; i <= 3; i++) {
+            this.bitmap.setZero(i);
+        }
+        this.freeDescriptors = countFreeDescriptors();
+        // directory buffer has to mirror its first block
+        if (isDescriptorBlockExist(0, 1)) {
+            this.oft.readBuffer(DIRECTORY_OFT_INDEX, 1, this);
+        }
+    }
+    
+    public boolean isReadOnly() {
+        return this.readOnly;
+    }
+    
     public void printDisk() { /** For debugging **/
         this.io.printDisk();
         this.oft.printTable();
@@ -64,11 +122,10 @@ public class FileSystem {
         if (descNumb == FileSystem.OUT_OF_MEMORY_ERR) {
             return FileSystem.OUT_OF_MEMORY_ERR;
         }
-        // populate empty descriptor with length of 0
+        // populate empty descriptor with length of 0, data blocks
+        // are only allocated once something is written into them
         setDescriptorLength(descNumb, 0);
-        
-        // add block to descriptor
-        newDescriptorBlock(descNumb);  
+        this.freeDescriptors--;
         return descNumb;
     }
     
@@ -109,6 +166,7 @@ public class FileSystem {
             descriptor[i] = IO.EMPTY_BYTE;
         }
         io.writeBlock(descIndex, descriptor);
+        this.freeDescriptors++;
     }
     
     /**
@@ -121,6 +179,10 @@ public class FileSystem {
         
         int finalPos = (blockNum * 4) + descBlockPos;
         byte[] descriptor = io.readBlock(descIndex);
+        // inline bytes are not block indices, an inline file has no blocks
+        if (isInline(descriptor, descBlockPos)) {
+            return -1;
+        }
         int blockIndex = Utils.intUnpack(descriptor, finalPos);
         return blockIndex;
     }
@@ -165,16 +227,122 @@ public class FileSystem {
         int descIndex = getDescriptorIndex(descNumb);
         int descBlockPos = getDescriptorBlockPosition(descNumb);
         byte[] descriptor = io.readBlock(descIndex);
+        if (isInline(descriptor, descBlockPos)) {
+            length |= INLINE_FLAG;
+        }
         Utils.intPack(descriptor, length, descBlockPos + 0);
         io.writeBlock(descIndex, descriptor);
     }
     
+    private static boolean isInline(byte[] descriptor, int descBlockPos) {
+        int length = Utils.intUnpack(descriptor, descBlockPos);
+        // a free descriptor is all empty bytes, that is not a flag
+        return (length != -1 && (length & INLINE_FLAG) != 0);
+    }
+    
+    /**
+     * the file's bytes live in its descriptor, it has no data blocks
+     */
+    public boolean isInline(int descNumb) {
+        byte[] descriptor = io.readBlock(getDescriptorIndex(descNumb));
+        return isInline(descriptor, getDescriptorBlockPosition(descNumb));
+    }
+    
+    /**
+     * any block slot of the file in use (inline files have none)
+     */
+    public boolean hasDataBlocks(int descNumb) {
+        int descBlockPos = getDescriptorBlockPosition(descNumb);
+        byte[] descriptor = io.readBlock(getDescriptorIndex(descNumb));
+        if (isInline(descriptor, descBlockPos)) {
+            return false;
+        }
+        for (int blockNumb=1; blockNumb <= MAX_FILE_BLOCKS; blockNumb++) {
+            if (!Utils.isByteFree(descriptor[descBlockPos + blockNumb * 4])) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * an inline file's bytes laid out as its first block would be, null
+     * if the file is not inline
+     */
+    public byte[] readInline(int descNumb) {
+        int descBlockPos = getDescriptorBlockPosition(descNumb);
+        byte[] descriptor = io.readBlock(getDescriptorIndex(descNumb));
+        if (!isInline(descriptor, descBlockPos)) {
+            return null;
+        }
+        byte[] block = Utils.getClearBytes(IO.BLOCK_SIZE);
+        System.arraycopy(descriptor, descBlockPos + 4, block, 0, INLINE_CAPACITY);
+        return block;
+    }
+    
+    /**
+     * Store the first INLINE_CAPACITY bytes of block in the descriptor,
+     * together with the length, in a single descriptor write. The caller
+     * makes sure the file has no data blocks and nothing past them.
+     */
+    public void writeInline(int descNumb, byte[] block, int length) {
+        int descIndex = getDescriptorIndex(descNumb);
+        int descBlockPos = getDescriptorBlockPosition(descNumb);
+        byte[] descriptor = io.readBlock(descIndex);
+        byte[] updated = descriptor.clone();
+        Utils.intPack(updated, length | INLINE_FLAG, descBlockPos);
+        System.arraycopy(block, 0, updated, descBlockPos + 4, INLINE_CAPACITY);
+        // re-reading an inline file flushes it unchanged
+        if (!Arrays.equals(descriptor, updated)) {
+            io.writeBlock(descIndex, updated);
+        }
+    }
+    
+    /**
+     * turn an inline descriptor back into one with empty block slots,
+     * whoever calls this already holds on to the inline bytes
+     */
+    private static void dropInline(byte[] descriptor, int descBlockPos) {
+        if (isInline(descriptor, descBlockPos)) {
+            int length = Utils.intUnpack(descriptor, descBlockPos);
+            Utils.intPack(descriptor, length & ~INLINE_FLAG, descBlockPos);
+            Arrays.fill(descriptor, descBlockPos + 4, descBlockPos + IO.DESCRIPTOR_SIZE, IO.EMPTY_BYTE);
+        }
+    }
+    
+    /**
+     * Write an open file's length back to its descriptor, skipped when the
+     * descriptor already has it. Called on close and whenever open files
+     * are flushed (save, sync, snapshot).
+     */
+    public void flushFileLength(int oftIndex) {
+        int descNumb = this.oft.getDescriptorNumb(oftIndex);
+        int fileLength = this.oft.getFileLength(oftIndex);
+        if (getDescriptorLength(descNumb) != fileLength) {
+            setDescriptorLength(descNumb, fileLength);
+        }
+    }
+    
+    /**
+     * length of a file, an open file's descriptor may be behind
+     */
+    private int currentFileLength(int descNumb) {
+        int oftIndex = this.oft.getOFTIndexFromDescriptor(descNumb);
+        if (oftIndex != COMMAND_FAIL) {
+            return this.oft.getFileLength(oftIndex);
+        }
+        return getDescriptorLength(descNumb);
+    }
+    
     private int getDescriptorLength(int descNumb) { 
         int descIndex = getDescriptorIndex(descNumb);
         int descBlockPos = getDescriptorBlockPosition(descNumb);
         byte[] descriptor = io.readBlock(descIndex);
         int length = Utils.intUnpack(descriptor, descBlockPos + 0);
-        return length;
+        if (length == -1) {
+            return length;
+        }
+        return length & ~INLINE_FLAG;
     }
     
     /**
@@ -193,6 +361,31 @@ public class FileSystem {
         return FileSystem.OUT_OF_MEMORY_ERR;
     }
         
+    /**
+     * full scan, only used when a whole disk is swapped in
+     */
+    private int countFreeDescriptors() {
+        int free = 0;
+        for (int descNumb=1; descNumb <= IO.NUMB_DESCRIPTORS; descNumb++) { 
+            if (!isDescriptorExist(descNumb)) { 
+                free++;
+            }
+        }
+        return free;
+    }
+    
+    /**
+     * statfs style usage numbers, all kept as running counts so this can
+     * be polled as often as needed without touching the disk
+     */
+    public synchronized StatFs statfs() {
+        int reserved = this.oft.getReservedCount();
+        return new StatFs(BitMap.NUMB_DATA_BLOCKS,
+                bitmap.countFreeDataBlocks() - reserved, reserved,
+                this.freeDescriptors, bitmap.countOpenFiles(),
+                bitmap.largestFreeRun());
+    }
+    
     private boolean isDescriptorExist(int descNumb) { 
         int descIndex = getDescriptorIndex(descNumb);
         int descBlockPos = getDescriptorBlockPosition(descNumb);
@@ -208,6 +401,9 @@ public class FileSystem {
         int descBlockPos = getDescriptorBlockPosition(descNumb);
                 
         byte[] descriptor = io.readBlock(descIndex);
+        if (isInline(descriptor, descBlockPos)) {
+            return false;
+        }
         int jump = blockNumb * 4;
         int finalBlockIndex = descBlockPos + jump; // add the base
         
@@ -215,13 +411,10 @@ public class FileSystem {
     }
     
     /**
-     * returns location of the new data block
+     * returns location of the new data block, placed in the first
+     * block slot of the descriptor that is still free
      */
     public int newDescriptorBlock(int descNumb) {
-        int descIndex = getDescriptorIndex(descNumb);
-        int descBlockPos = getDescriptorBlockPosition(descNumb);
-        
-        byte[] descriptor = io.readBlock(descIndex);
         int blockNumb = 1;
         boolean isBlockExist = isDescriptorBlockExist(descNumb, blockNumb);
         
@@ -233,7 +426,26 @@ public class FileSystem {
             }
             isBlockExist = isDescriptorBlockExist(descNumb, blockNumb);
         }       
-        int indexDataBlock = bitmap.closestDataBlock();
+        return newDescriptorBlock(descNumb, blockNumb);
+    }
+    
+    /**
+     * allocate a data block for a specific block number (1-3) of the file,
+     * sparse files can have holes in front of it
+     */
+    public int newDescriptorBlock(int descNumb, int blockNumb) {
+        int descIndex = getDescriptorIndex(descNumb);
+        int descBlockPos = getDescriptorBlockPosition(descNumb);
+        
+        byte[] descriptor = io.readBlock(descIndex);
+        int hint = localityHint(blockNumToBlockIndexOrNone(descNumb, blockNumb - 1), 
+                blockNumToBlockIndexOrNone(descNumb, blockNumb + 1));
+        int indexDataBlock = this.allocator.allocateRun(bitmap, 1, hint);
+        if (indexDataBlock == BitMap.BITMAP_ERR) {
+            return FileSystem.OUT_OF_MEMORY_ERR;
+        }
+        // an inline file moving out, its bytes are in the OFT by now
+        dropInline(descriptor, descBlockPos);
         
         // populate bitmap
         bitmap.setOne(indexDataBlock);
@@ -247,6 +459,86 @@ public class FileSystem {
         return indexDataBlock;
     }
     
+    /**
+     * ldisk index of a file's block, -1 for holes and block numbers
+     * outside 1-3
+     */
+    private int blockNumToBlockIndexOrNone(int descNumb, int blockNumb) {
+        if (blockNumb < 1 || blockNumb > MAX_FILE_BLOCKS 
+                || !isDescriptorBlockExist(descNumb, blockNumb)) {
+            return -1;
+        }
+        return blockNumToBlockIndex(descNumb, blockNumb);
+    }
+    
+    /**
+     * where a block would like to go given the blocks on either side of
+     * it in the file: right after the previous one, else right before
+     * the next one, -1 for no preference
+     */
+    private static int localityHint(int prevIndex, int nextIndex) {
+        if (prevIndex != -1) {
+            return prevIndex + 1;
+        }
+        if (nextIndex != -1) {
+            return nextIndex - 1;
+        }
+        return -1;
+    }
+    
+    public synchronized void setAllocationPolicy(AllocationPolicy allocator) {
+        this.allocator = allocator;
+    }
+    
+    public synchronized AllocationPolicy getAllocationPolicy() {
+        return this.allocator;
+    }
+
+    /**
+     * Record every block access into trace (null turns it off), kept
+     * across restores and remounts. Replay it with an IOQueue.
+     */
+    public synchronized void setTrace(BlockTrace trace) {
+        this.io.setTrace(trace);
+    }
+    
+    /**
+     * Allocate data blocks for several block numbers of a file at once,
+     * contiguously when a long enough free run exists. Returns the ldisk
+     * index for each block number (OUT_OF_MEMORY_ERR if none was left).
+     */
+    public int[] newDescriptorExtent(int descNumb, int[] blockNumbs, int count) {
+        int descIndex = getDescriptorIndex(descNumb);
+        int descBlockPos = getDescriptorBlockPosition(descNumb);
+        byte[] descriptor = io.readBlock(descIndex);
+        // an inline file moving out, its first block is one of blockNumbs
+        dropInline(descriptor, descBlockPos);
+        
+        int[] indices = new int[count];
+        int hint = (count == 0) ? -1 : localityHint(
+                blockNumToBlockIndexOrNone(descNumb, blockNumbs[0] - 1), -1);
+        int runStart = this.allocator.allocateRun(bitmap, count, hint);
+        for (int k=0; k < count; k++) {
+            int indexDataBlock = runStart + k;
+            if (runStart == BitMap.BITMAP_ERR) {
+                // disk too fragmented, settle for whatever is free
+                hint = localityHint(blockNumToBlockIndexOrNone(descNumb, blockNumbs[k] - 1), 
+                        blockNumToBlockIndexOrNone(descNumb, blockNumbs[k] + 1));
+                indexDataBlock = this.allocator.allocateRun(bitmap, 1, hint);
+                if (indexDataBlock == BitMap.BITMAP_ERR) {
+                    indices[k] = OUT_OF_MEMORY_ERR;
+                    continue;
+                }
+            }
+            bitmap.setOne(indexDataBlock);
+            int blockDescriptorIndex = (blockNumbs[k] * 4) + descBlockPos;
+            Utils.intPack(descriptor, indexDataBlock, blockDescriptorIndex);
+            indices[k] = indexDataBlock;
+        }
+        io.writeBlock(descIndex, descriptor);
+        return indices;
+    }
+    
     /**
      * skip 8 bytes at a time because a name field is
      * 4 bytes name + 4 bytes integer index
@@ -320,7 +612,10 @@ public class FileSystem {
     /**
      * returns status for success or fail
      */
-    public int create(byte[] filename) {
+    public synchronized int create(byte[] filename) {
+        if (this.readOnly) {
+            return COMMAND_FAIL;
+        }
         int descNumb = createDescriptor();
         if (descNumb == FileSystem.OUT_OF_MEMORY_ERR) {
             return FileSystem.OUT_OF_MEMORY_ERR;
@@ -333,6 +628,7 @@ public class FileSystem {
         int position = searchDirectoryForFreeEntry();   
         if (position != COMMAND_FAIL) {
             this.writeDirectoryEntry(position, filename, descNumb);
+            this.afterUpdate();
             return COMMAND_SUCCEED;
         } 
         else {
@@ -341,35 +637,342 @@ public class FileSystem {
         }
     }
     
-    public int destroy(byte[] inFilename) {                
+    public synchronized int destroy(byte[] inFilename) {                
+        if (this.readOnly) {
+            return COMMAND_FAIL;
+        }
         int position = this.searchDirectoryEntry(inFilename);
         if (position != COMMAND_FAIL) {
             byte[] nameEntry = getDirectoryEntry(position);
             this.clearDirectoryEntry(position); 
             int descNumb = Utils.intUnpack(nameEntry, DIRECORY_ENTRY_SIZE/2); 
-            clearFileDescriptor(descNumb);
+            
+            // drop the open entry without flushing, its buffered and
+            // delayed blocks belong to a file that is going away
             int oftIndex = this.oft.getOFTIndexFromDescriptor(descNumb);
             if (oftIndex != COMMAND_FAIL) {
-                this.close(oftIndex);
+                this.oft.clearEntry(oftIndex);
             }
+            clearFileDescriptor(descNumb);
+            this.afterUpdate();
             return COMMAND_SUCCEED;
         }
         return COMMAND_FAIL;
     }
     
+    /**
+     * Apply a batch of creates, destroys and writes as one unit. Each op is
+     * checked against a single in memory copy of the metadata blocks and
+     * the bitmap, every change is staged on those copies and nothing
+     * reaches the disk until the whole batch has checked out. Then each
+     * changed block is written once. Either every op happens or none does,
+     * the index of a failing op is left in the batch.
+     */
+    public synchronized int applyBatch(Batch batch) {
+        batch.setFailedOp(-1);
+        if (this.readOnly) {
+            return COMMAND_FAIL;
+        }
+        // the directory buffer may be ahead of its block
+        this.oft.writeBuffer(DIRECTORY_OFT_INDEX, this.oft.getBlockNumb(DIRECTORY_OFT_INDEX), this);
+        
+        byte[][] staged = new byte[IO.LDISK_SIZE][];
+        BitMap working = this.bitmap.copy();
+        // open files destroyed by the batch, their entries get dropped
+        boolean[] dropped = new boolean[IO.NUMB_DESCRIPTORS + 1];
+        int freeDelta = 0;
+        
+        for (int k=0; k < batch.size(); k++) {
+            BatchOp op = batch.getOps().get(k);
+            int status = COMMAND_FAIL;
+            if (op.getKind() == BatchOp.CREATE) {
+                status = stageCreate(staged, working, op.getFilename());
+                freeDelta--;
+            }
+            else if (op.getKind() == BatchOp.DESTROY) {
+                status = stageDestroy(staged, working, dropped, op.getFilename());
+                freeDelta++;
+            }
+            else if (op.getKind() == BatchOp.WRITE) {
+                status = stageWrite(staged, working, dropped, op);
+            }
+            if (status != COMMAND_SUCCEED) {
+                // nothing has been written yet, just walk away
+                batch.setFailedOp(k);
+                return COMMAND_FAIL;
+            }
+        }
+        
+        // only blocks that actually changed go out, once each
+        for (int i=0; i < IO.LDISK_SIZE; i++) {
+            if (staged[i] != null && !Arrays.equals(staged[i], io.readBlock(i))) {
+                io.writeBlock(i, staged[i]);
+            }
+        }
+        for (int i=BitMap.FIRST_DATA_BLOCK; i < IO.LDISK_SIZE; i++) {
+            if (working.isOne(i) && !this.bitmap.isOne(i)) {
+                this.bitmap.setOne(i);
+            }
+            else if (!working.isOne(i) && this.bitmap.isOne(i)) {
+                this.bitmap.setZero(i);
+            }
+        }
+        for (int i=1; i < OFT.OFT_MAX_SIZE; i++) {
+            if (this.oft.isEntryOpen(i) && dropped[this.oft.getDescriptorNumb(i)]) {
+                this.oft.clearEntry(i);
+            }
+        }
+        this.freeDescriptors += freeDelta;
+        
+        // directory entry mirrors its descriptor, buffer its block
+        this.oft.setFileLength(DIRECTORY_OFT_INDEX, getDescriptorLength(0));
+        this.oft.readBuffer(DIRECTORY_OFT_INDEX, this.oft.getBlockNumb(DIRECTORY_OFT_INDEX), this);
+        this.afterUpdate();
+        return COMMAND_SUCCEED;
+    }
+    
+    /**
+     * batch copy of a block, read from disk the first time it is needed
+     */
+    private byte[] stage(byte[][] staged, int blockIndex) {
+        if (staged[blockIndex] == null) {
+            staged[blockIndex] = io.readBlock(blockIndex);
+        }
+        return staged[blockIndex];
+    }
+    
+    /**
+     * ldisk index of a file's block in the batch copy, -1 if it has none
+     */
+    private int stagedBlockIndex(byte[][] staged, int descNumb, int blockNumb) {
+        byte[] descriptor = stage(staged, getDescriptorIndex(descNumb));
+        int finalPos = getDescriptorBlockPosition(descNumb) + (blockNumb * 4);
+        if (Utils.isByteFree(descriptor[finalPos]) 
+                || isInline(descriptor, getDescriptorBlockPosition(descNumb))) {
+            return -1;
+        }
+        return Utils.intUnpack(descriptor, finalPos);
+    }
+    
+    private int stagedNeighbour(byte[][] staged, int descNumb, int blockNumb) {
+        if (blockNumb < 1 || blockNumb > MAX_FILE_BLOCKS) {
+            return -1;
+        }
+        return stagedBlockIndex(staged, descNumb, blockNumb);
+    }
+    
+    /**
+     * allocate blocks for the given block numbers of a file out of the
+     * batch bitmap, contiguously if a long enough run is free
+     */
+    private int stageAllocate(byte[][] staged, BitMap working, int descNumb, 
+            int[] blockNumbs, int count) {
+        int available = working.countFreeDataBlocks() - this.oft.getReservedCount();
+        if (count > available) {
+            return OUT_OF_MEMORY_ERR;
+        }
+        byte[] descriptor = stage(staged, getDescriptorIndex(descNumb));
+        int descBlockPos = getDescriptorBlockPosition(descNumb);
+        int hint = localityHint(stagedNeighbour(staged, descNumb, blockNumbs[0] - 1), -1);
+        int runStart = this.allocator.allocateRun(working, count, hint);
+        for (int k=0; k < count; k++) {
+            int indexDataBlock = runStart + k;
+            if (runStart == BitMap.BITMAP_ERR) {
+                hint = localityHint(stagedNeighbour(staged, descNumb, blockNumbs[k] - 1),
+                        stagedNeighbour(staged, descNumb, blockNumbs[k] + 1));
+                indexDataBlock = this.allocator.allocateRun(working, 1, hint);
+            }
+            working.setOne(indexDataBlock);
+            Utils.intPack(descriptor, indexDataBlock, (blockNumbs[k] * 4) + descBlockPos);
+            // a fresh block starts out empty, whatever the disk had there
+            staged[indexDataBlock] = Utils.getClearBytes(IO.BLOCK_SIZE);
+        }
+        return COMMAND_SUCCEED;
+    }
+    
+    /**
+     * slot of filename in the batch copy of the directory, unallocated
+     * directory blocks read as free slots just like through readFile
+     */
+    private int stagedDirectorySearch(byte[][] staged, byte[] filename) {
+        byte[] free = Utils.getClearBytes(DIRECORY_ENTRY_SIZE/2);
+        for (int slot=0; slot < IO.NUMB_DESCRIPTORS; slot++) {
+            int filePos = slot * DIRECORY_ENTRY_SIZE;
+            int blockIndex = stagedBlockIndex(staged, 0, this.oft.posToBlockIndex(filePos) + 1);
+            byte[] name = free;
+            if (blockIndex != -1) {
+                int offset = this.oft.posToNewBlockPos(filePos);
+                name = Arrays.copyOfRange(stage(staged, blockIndex), offset, 
+                        offset + DIRECORY_ENTRY_SIZE/2);
+            }
+            if (Utils.isByteArrEquals(name, filename)) {
+                return slot;
+            }
+        }
+        return COMMAND_FAIL;
+    }
+    
+    /**
+     * batch copy of the directory block holding slot, allocated if the
+     * directory does not reach that far yet
+     */
+    private byte[] stagedDirectoryBlock(byte[][] staged, BitMap working, int slot) {
+        int blockNumb = this.oft.posToBlockIndex(slot * DIRECORY_ENTRY_SIZE) + 1;
+        int blockIndex = stagedBlockIndex(staged, 0, blockNumb);
+        if (blockIndex == -1) {
+            int[] blockNumbs = { blockNumb };
+            if (stageAllocate(staged, working, 0, blockNumbs, 1) != COMMAND_SUCCEED) {
+                return null;
+            }
+            blockIndex = stagedBlockIndex(staged, 0, blockNumb);
+        }
+        return stage(staged, blockIndex);
+    }
+    
+    private int stageCreate(byte[][] staged, BitMap working, byte[] filename) {
+        if (filename.length == 0 || filename.length > MAX_SYMBOLIC_FILENAME
+                || stagedDirectorySearch(staged, filename) != COMMAND_FAIL) {
+            return COMMAND_FAIL;
+        }
+        int slot = stagedDirectorySearch(staged, Utils.getClearBytes(DIRECORY_ENTRY_SIZE/2));
+        if (slot == COMMAND_FAIL) {
+            return COMMAND_FAIL;
+        }
+        int descNumb = OUT_OF_MEMORY_ERR;
+        for (int d=1; d <= IO.NUMB_DESCRIPTORS && descNumb == OUT_OF_MEMORY_ERR; d++) {
+            byte[] descriptor = stage(staged, getDescriptorIndex(d));
+            if (Utils.isByteFree(descriptor[getDescriptorBlockPosition(d)])) {
+                descNumb = d;
+            }
+        }
+        if (descNumb == OUT_OF_MEMORY_ERR) {
+            return COMMAND_FAIL;
+        }
+        byte[] block = stagedDirectoryBlock(staged, working, slot);
+        if (block == null) {
+            return COMMAND_FAIL;
+        }
+        byte[] descriptor = stage(staged, getDescriptorIndex(descNumb));
+        Utils.intPack(descriptor, 0, getDescriptorBlockPosition(descNumb));
+        
+        // same layout writeDirectoryEntry(...) produces
+        int filePos = slot * DIRECORY_ENTRY_SIZE;
+        int offset = this.oft.posToNewBlockPos(filePos);
+        Arrays.fill(block, offset, offset + DIRECORY_ENTRY_SIZE/2, (byte) 0);
+        System.arraycopy(filename, 0, block, offset, filename.length);
+        Utils.intPack(block, descNumb, offset + DIRECORY_ENTRY_SIZE/2);
+        
+        byte[] blockZero = stage(staged, 0);
+        int dirLength = Utils.intUnpack(blockZero, 0);
+        Utils.intPack(blockZero, Math.max(dirLength, filePos + DIRECORY_ENTRY_SIZE), 0);
+        return COMMAND_SUCCEED;
+    }
+    
+    private int stageDestroy(byte[][] staged, BitMap working, boolean[] dropped, 
+            byte[] filename) {
+        int slot = stagedDirectorySearch(staged, filename);
+        if (slot == COMMAND_FAIL) {
+            return COMMAND_FAIL;
+        }
+        int filePos = slot * DIRECORY_ENTRY_SIZE;
+        byte[] block = stagedDirectoryBlock(staged, working, slot);
+        int offset = this.oft.posToNewBlockPos(filePos);
+        int descNumb = Utils.intUnpack(block, offset + DIRECORY_ENTRY_SIZE/2);
+        Arrays.fill(block, offset, offset + DIRECORY_ENTRY_SIZE, IO.EMPTY_BYTE);
+        
+        for (int blockNumb=1; blockNumb <= MAX_FILE_BLOCKS; blockNumb++) {
+            int blockIndex = stagedBlockIndex(staged, descNumb, blockNumb);
+            if (blockIndex != -1) {
+                working.setZero(blockIndex);
+                staged[blockIndex] = Utils.getClearBytes(IO.BLOCK_SIZE);
+            }
+        }
+        byte[] descriptor = stage(staged, getDescriptorIndex(descNumb));
+        int descBlockPos = getDescriptorBlockPosition(descNumb);
+        Arrays.fill(descriptor, descBlockPos, descBlockPos + IO.DESCRIPTOR_SIZE, IO.EMPTY_BYTE);
+        if (this.oft.getOFTIndexFromDescriptor(descNumb) != COMMAND_FAIL) {
+            dropped[descNumb] = true;
+        }
+        return COMMAND_SUCCEED;
+    }
+    
+    private int stageWrite(byte[][] staged, BitMap working, boolean[] dropped, BatchOp op) {
+        byte[] data = op.getData();
+        int position = op.getPosition();
+        if (position < 0 || position + data.length > MAX_FILESIZE) {
+            return COMMAND_FAIL;
+        }
+        int slot = stagedDirectorySearch(staged, op.getFilename());
+        if (slot == COMMAND_FAIL) {
+            return COMMAND_FAIL;
+        }
+        int offset = this.oft.posToNewBlockPos(slot * DIRECORY_ENTRY_SIZE);
+        byte[] entryBlock = stagedDirectoryBlock(staged, working, slot);
+        int descNumb = Utils.intUnpack(entryBlock, offset + DIRECORY_ENTRY_SIZE/2);
+        // an open file's buffer would go stale under us
+        if (!dropped[descNumb] && this.oft.getOFTIndexFromDescriptor(descNumb) != COMMAND_FAIL) {
+            return COMMAND_FAIL;
+        }
+        if (data.length == 0) {
+            return COMMAND_SUCCEED;
+        }
+        
+        // batch writes always go to real blocks, an inline file moves out
+        byte[] descriptor = stage(staged, getDescriptorIndex(descNumb));
+        int descBlockPos = getDescriptorBlockPosition(descNumb);
+        byte[] inline = null;
+        if (isInline(descriptor, descBlockPos)) {
+            inline = Arrays.copyOfRange(descriptor, descBlockPos + 4, descBlockPos + 4 + INLINE_CAPACITY);
+            dropInline(descriptor, descBlockPos);
+        }
+        
+        int firstBlockNumb = this.oft.posToBlockIndex(position) + 1;
+        int lastBlockNumb = this.oft.posToBlockIndex(position + data.length - 1) + 1;
+        int[] missing = new int[MAX_FILE_BLOCKS];
+        int count = 0;
+        if (inline != null && firstBlockNumb > 1) {
+            missing[count++] = 1;
+        }
+        for (int blockNumb=firstBlockNumb; blockNumb <= lastBlockNumb; blockNumb++) {
+            if (stagedBlockIndex(staged, descNumb, blockNumb) == -1) {
+                missing[count++] = blockNumb;
+            }
+        }
+        if (count > 0 && stageAllocate(staged, working, descNumb, missing, count) != COMMAND_SUCCEED) {
+            return COMMAND_FAIL;
+        }
+        if (inline != null) {
+            byte[] first = stage(staged, stagedBlockIndex(staged, descNumb, 1));
+            System.arraycopy(inline, 0, first, 0, INLINE_CAPACITY);
+        }
+        
+        int progress = 0;
+        while (progress < data.length) {
+            int filePos = position + progress;
+            int blockNumb = this.oft.posToBlockIndex(filePos) + 1;
+            byte[] block = stage(staged, stagedBlockIndex(staged, descNumb, blockNumb));
+            int blockPos = this.oft.posToNewBlockPos(filePos);
+            int chunk = Math.min(data.length - progress, IO.BLOCK_SIZE - blockPos);
+            System.arraycopy(data, progress, block, blockPos, chunk);
+            progress += chunk;
+        }
+        int length = Utils.intUnpack(descriptor, descBlockPos);
+        Utils.intPack(descriptor, Math.max(length, position + data.length), descBlockPos);
+        return COMMAND_SUCCEED;
+    }
+    
     /**
      * Return Open File Table index. This "file index" is 
      * what's referred to in the next few methods.
      */
-    public int open(byte[] inFilename) {     
+    public synchronized int open(byte[] inFilename) {     
         int position = this.searchDirectoryEntry(inFilename);
         if (position != COMMAND_FAIL) {
             byte[] nameEntry = getDirectoryEntry(position);  
             
             int descNumb = Utils.intUnpack(nameEntry, DIRECORY_ENTRY_SIZE/2); 
-            int descIndex = getDescriptorIndex(descNumb);
-            int descBlockPos = getDescriptorBlockPosition(descNumb);
-            byte[] descriptor = io.readBlock(descIndex);
+            // the file may be open already, with a newer length
+            int fileLength = currentFileLength(descNumb);
      
             int oftIndex = this.oft.getFreeOFTEntry();
             if (oftIndex == OUT_OF_MEMORY_ERR) {
@@ -384,102 +987,102 @@ public class FileSystem {
             this.oft.setDescriptorNumb(oftIndex, descNumb);
             
             // read the data from the first block into the OFT
-            int blockOneLocation = descBlockPos + 4; // skip the file length 
-            int blockOneIndex = Utils.intUnpack(descriptor, blockOneLocation);
-            byte[] blockData = io.readBlock(blockOneIndex);
-            for (int b=0; b < blockData.length; b++) {
-                this.oft.copyToTable(oftIndex, b, blockData[b]);
-            }
+            // (an empty buffer if the file has no first block yet)
+            this.oft.readBuffer(oftIndex, 1, this);
             // set filelength from descriptor into OFT
-            int fileLengthLoc = descBlockPos + 0;
-            int fileLength = Utils.intUnpack(descriptor, fileLengthLoc); 
             this.oft.setFileLength(oftIndex, fileLength);
             return oftIndex; // succeed     
         }
         return COMMAND_FAIL;
    }
     
-    public int close(int oftIndex) {
+    public synchronized int close(int oftIndex) {
         int blockNumb = this.oft.getBlockNumb(oftIndex);
         this.oft.writeBuffer(oftIndex, blockNumb, this);
+        // blocks written since open are only placed on disk now
+        this.oft.flushDelayed(oftIndex, this);
         
-        // extract descriptor number and the file length and update
-        int newFileLen = this.oft.getFileLength(oftIndex);
-        int descNumb = this.oft.getDescriptorNumb(oftIndex);
-        
-        setDescriptorLength(descNumb, newFileLen);
+        this.flushFileLength(oftIndex);
         this.oft.clearEntry(oftIndex);
+        
+        if (this.durability == DurabilityMode.FSYNC_ON_CLOSE) {
+            this.syncQuietly();
+        }
+        else {
+            this.afterUpdate();
+        }
         return COMMAND_SUCCEED;
     }
     
-    public byte[] readFile(int oftIndex, int goalBytes) {
-        // compute latest position in the r/w buffer
+    public synchronized byte[] readFile(int oftIndex, int goalBytes) {
+        byte[] returnBytes = Utils.getClearBytes(this.readableBytes(oftIndex, goalBytes));
+        int count = this.readFile(oftIndex, returnBytes, 0, returnBytes.length);
+        if (count < returnBytes.length) {
+            return Arrays.copyOf(returnBytes, count);
+        }
+        return returnBytes;
+    }
+    
+    /**
+     * we can possibly request more bytes than possible given
+     * our current position, only read till the file's end
+     */
+    private int readableBytes(int oftIndex, int goalBytes) {
         int position = this.oft.getPosition(oftIndex);
-        int progress = 0;
-        
         int fileLength = MAX_FILESIZE;
         if (oftIndex != DIRECTORY_OFT_INDEX) {
             fileLength = this.oft.getFileLength(oftIndex);
         }
-        // we can possibly request more bytes than possible given
-        // our current position, only read till the file's end
-        goalBytes = Math.min(fileLength - position, goalBytes); 
-        
-        // System.out.println("GOALBYTES: " + goalBytes);
-        byte[] returnBytes = Utils.getClearBytes(goalBytes);
-        
+        return Math.max(0, Math.min(fileLength - position, goalBytes));
+    }
+    
+    /**
+     * Reads into a caller supplied array, nothing is allocated. Copies a
+     * block's worth at a time out of the r/w buffer and returns the number
+     * of bytes read, 0 at the end of the file.
+     */
+    public synchronized int readFile(int oftIndex, byte[] readTo, int offset, int goalBytes) {
+        // compute latest position in the r/w buffer
+        int position = this.oft.getPosition(oftIndex);
+        goalBytes = this.readableBytes(oftIndex, goalBytes);
+        
         // keep track of block number
         int curBlockIndex = this.oft.posToBlockIndex(position);
+        int progress = 0;
         
-        // keep track of how much we've read to know when to exit
-        int curNumBytes = 0;
-        boolean keepReading = true;
-
-        // copy from buffer to memory until
-        while (keepReading) {
+        while (progress < goalBytes) {
             int newPosition = position + progress;
             int newBlockIndex = this.oft.posToBlockIndex(newPosition);
-            this.oft.setPosition(oftIndex, newPosition);
-                        
-            boolean isDesiredCount = (curNumBytes == goalBytes);
-            boolean isEndOfBuffer = (newBlockIndex != curBlockIndex);
-            boolean overSized = ((newBlockIndex + 1) > MAX_FILE_BLOCKS);
-            
-            if (isDesiredCount || overSized) {
-                // update cur pos, return status
-                this.oft.setPosition(oftIndex, newPosition);
-                keepReading = false; 
-            }
-            // end of buffer is reached
-            if (isEndOfBuffer && !overSized) {
-                int curBlockNum = curBlockIndex + 1;
-                
-                // write the buffer to disk
-                this.oft.writeBuffer(oftIndex, curBlockNum, this);
-                
-                // read the next block into buffer
-                int newBlockNumb = newBlockIndex + 1;
-                this.oft.readBuffer(oftIndex, newBlockNumb, this);
-                
-                // update to the new block number
+            if ((newBlockIndex + 1) > MAX_FILE_BLOCKS) {
+                break;
+            }
+            // end of buffer is reached, swap in the next block
+            if (newBlockIndex != curBlockIndex) {
+                this.oft.writeBuffer(oftIndex, curBlockIndex + 1, this);
+                this.oft.readBuffer(oftIndex, newBlockIndex + 1, this);
                 curBlockIndex = newBlockIndex;
-            }       
-            if (!keepReading) {
-                return returnBytes;
             }
-            // continue copying
-            returnBytes[curNumBytes] = this.oft.copyFromTable(oftIndex, newPosition);
-            progress++;
-            curNumBytes++;
+            int blockPos = this.oft.posToNewBlockPos(newPosition);
+            int chunk = Math.min(goalBytes - progress, IO.BLOCK_SIZE - blockPos);
+            this.oft.copyFromTable(oftIndex, newPosition, readTo, offset + progress, chunk);
+            progress += chunk;
+        }
+        int newPosition = position + progress;
+        int newBlockIndex = this.oft.posToBlockIndex(newPosition);
+        // leave the buffer holding the block the position points into
+        if (newBlockIndex != curBlockIndex && (newBlockIndex + 1) <= MAX_FILE_BLOCKS) {
+            this.oft.writeBuffer(oftIndex, curBlockIndex + 1, this);
+            this.oft.readBuffer(oftIndex, newBlockIndex + 1, this);
         }
-        return null; 
+        this.oft.setPosition(oftIndex, newPosition);
+        return progress;
     }
     
     /**
      * 2 method signatures for the writeFile(...) method b/c the API
      * allows for writing in "wr <channel> <char> <length>" syntax 
      */
-    public int writeFile(int oftIndex, byte character, int length) {
+    public synchronized int writeFile(int oftIndex, byte character, int length) {
         byte[] readFrom = new byte[length];
         for (int i=0; i < length; i++) {
             readFrom[i] = character;
@@ -487,83 +1090,133 @@ public class FileSystem {
         return this.writeFile(oftIndex, readFrom);
     }
     
-    public int writeFile(int oftIndex, byte[] readFrom) {
+    public synchronized int writeFile(int oftIndex, byte[] readFrom) {
+        return this.writeFile(oftIndex, readFrom, 0, readFrom.length);
+    }
+    
+    /**
+     * Writes from a caller supplied array, a block's worth at a time.
+     * Returns the number of bytes written, fewer than asked for once the
+     * file hits MAX_FILESIZE.
+     */
+    public synchronized int writeFile(int oftIndex, byte[] readFrom, int offset, int length) {
+        if (this.readOnly) {
+            return COMMAND_FAIL;
+        }
         int position = this.oft.getPosition(oftIndex);
         int descNumb = this.oft.getDescriptorNumb(oftIndex);
-        // start at index immediately after where we left off in file
         int progress = 0; 
-        int addedFileLen = 0;
         
         // keep track of block index to see if we are at end of buffer
         int curBlockIndex = this.oft.posToBlockIndex(position);
                 
-        // if the first block does not exist, create it
-        int firstBlockNumb = 1;
-        if (!isDescriptorBlockExist(descNumb, firstBlockNumb)) {
-            newDescriptorBlock(descNumb);
-        }
+        // blocks are allocated lazily, once data actually lands in them
+        boolean curBlockAllocated = false;
 
-        boolean keepReading = true;
         // copy from memory to buffer until the desired count or EOF is reached
-        while (keepReading) {
+        while (progress < length) {
             int newPosition = progress + position;
             int newBlockIndex = this.oft.posToBlockIndex(newPosition);
-            
-            boolean isEOF = ((newBlockIndex + 1) > MAX_FILE_BLOCKS);
-            boolean hitDesiredCount = (progress >= readFrom.length);
-            boolean isEndOfBuffer = (newBlockIndex != curBlockIndex);
-                    
-            if (isEOF || hitDesiredCount) {
-                this.oft.setPosition(oftIndex, newPosition);
-                
-                int curFileLen = this.oft.getFileLength(oftIndex);
-                int newFileLen = curFileLen + addedFileLen;
-    
-                this.oft.setFileLength(oftIndex, newFileLen);
-                setDescriptorLength(descNumb, newFileLen);
-                
-                keepReading = false; 
+            if ((newBlockIndex + 1) > MAX_FILE_BLOCKS) {
+                break;
             }
-            if (isEndOfBuffer) {
-                int writeBlockIndex = curBlockIndex;
+            if (newBlockIndex != curBlockIndex) {
+                this.oft.writeBuffer(oftIndex, curBlockIndex + 1, this);
+                // read in the new (possibly empty) block
+                this.oft.readBuffer(oftIndex, newBlockIndex + 1, this);
                 curBlockIndex = newBlockIndex;
+                curBlockAllocated = false;
+            }
+            if (!curBlockAllocated) {
+                // if block does not exist yet (expanding file or hole)
                 int curBlockNumber = curBlockIndex + 1;
-                
-                boolean exceeded = curBlockNumber > MAX_FILE_BLOCKS;
-                // if block does not exist yet (expanding file)
-                if (!exceeded && !isDescriptorBlockExist(descNumb, curBlockNumber)) {
-                    // allocate new block and update bitmap, also update file 
-                    // descriptor with new index (all done in below method)
-                    int status = newDescriptorBlock(descNumb); 
+                if (!isDescriptorBlockExist(descNumb, curBlockNumber) &&
+                        !this.oft.isBlockReserved(oftIndex, curBlockNumber)) {
+                    int status = reserveDataBlock(oftIndex, descNumb, curBlockNumber); 
                     if (status == OUT_OF_MEMORY_ERR) {
                         return COMMAND_FAIL;
                     }
                 }
-                this.oft.setPosition(oftIndex, newPosition);
-                int writeBlockNum = writeBlockIndex + 1;
-                this.oft.writeBuffer(oftIndex, writeBlockNum, this);
-                
-                if (!exceeded) {
-                    int readBlockNum = newBlockIndex + 1;
-                    // read in the new empty block
-                    this.oft.readBuffer(oftIndex, readBlockNum, this);
-                }
+                curBlockAllocated = true;
             }
-            if (keepReading) {
-                // continue copying if we have not hit end
-                this.oft.copyToTable(oftIndex, newPosition, readFrom[progress]);
-                progress++;
-                addedFileLen++; // in bytes
+            int blockPos = this.oft.posToNewBlockPos(newPosition);
+            int chunk = Math.min(length - progress, IO.BLOCK_SIZE - blockPos);
+            this.oft.copyToTable(oftIndex, newPosition, readFrom, offset + progress, chunk);
+            progress += chunk;
+        }
+        int newPosition = position + progress;
+        int newBlockIndex = this.oft.posToBlockIndex(newPosition);
+        if (newBlockIndex != curBlockIndex) {
+            // stopped right on a block boundary, move the buffer along
+            this.oft.writeBuffer(oftIndex, curBlockIndex + 1, this);
+            if ((newBlockIndex + 1) <= MAX_FILE_BLOCKS) {
+                this.oft.readBuffer(oftIndex, newBlockIndex + 1, this);
             }
         }
-        return addedFileLen;
+        this.oft.setPosition(oftIndex, newPosition);
+        
+        int curFileLen = this.oft.getFileLength(oftIndex);
+        // writing past the end (into a hole) extends the file
+        int newFileLen = Math.max(curFileLen, newPosition);
+        this.oft.setFileLength(oftIndex, newFileLen);
+        // a file's length lives in its OFT entry while it is open and only
+        // reaches the descriptor on close/flush, see flushFileLength(...)
+        if (oftIndex == DIRECTORY_OFT_INDEX) {
+            setDescriptorLength(descNumb, newFileLen);
+        }
+        
+        // directory writes are part of create/destroy, which sync on their own
+        if (oftIndex != DIRECTORY_OFT_INDEX) {
+            this.afterUpdate();
+        }
+        return progress;
+    }
+    
+    /**
+     * Regular files only reserve the block, the actual block is picked when
+     * the file is flushed (delayed allocation). The directory is allocated
+     * right away because other code reads its blocks straight from disk.
+     */
+    private int reserveDataBlock(int oftIndex, int descNumb, int blockNumb) {
+        if (oftIndex == DIRECTORY_OFT_INDEX) {
+            return newDescriptorBlock(descNumb, blockNumb);
+        }
+        // an inline file growing past its first block moves out to real
+        // blocks, its first block goes along with the rest on the flush
+        byte[] inline = null;
+        if (blockNumb != 1 && !this.oft.isBlockReserved(oftIndex, 1)) {
+            inline = readInline(descNumb);
+        }
+        int needed = (inline != null) ? 2 : 1;
+        int available = bitmap.countFreeDataBlocks() - this.oft.getReservedCount();
+        if (available < needed) {
+            return OUT_OF_MEMORY_ERR;
+        }
+        if (inline != null) {
+            this.oft.reserveBlock(oftIndex, 1, inline);
+        }
+        this.oft.reserveBlock(oftIndex, blockNumb);
+        return COMMAND_SUCCEED;
+    }
+    
+    public synchronized int getPosition(int oftIndex) {
+        return this.oft.getPosition(oftIndex);
+    }
+    
+    public synchronized int getFileLength(int oftIndex) {
+        return this.oft.getFileLength(oftIndex);
+    }
+    
+    public synchronized boolean isOpen(int oftIndex) {
+        return (oftIndex > DIRECTORY_OFT_INDEX && oftIndex < OFT.OFT_MAX_SIZE
+                && this.oft.isEntryOpen(oftIndex));
     }
     
     /**
      * Adds ability to rewind or fast-forward in a
      * specified file. Move to fileLoc in specified file.
      */
-    public int lseek(int oftIndex, int newPosition) {
+    public synchronized int lseek(int oftIndex, int newPosition) {
         // if new position is not in current block, write buffer to disk
         int curPos = this.oft.getPosition(oftIndex);
         int curBlockIndex = this.oft.posToBlockIndex(curPos);
@@ -595,79 +1248,480 @@ public class FileSystem {
     /**
      * read directory file for each non-empty entry, print file name
      */
-    public String ls() {
-        this.lseek(DIRECTORY_OFT_INDEX, 0);
-        String output = "";
+    public synchronized String ls() {
+        StringBuilder output = new StringBuilder();
+        int token = 0;
         
-        for (int i=0; i < IO.NUMB_DESCRIPTORS; i++) {
-            byte[] nameFile = this.readFile(DIRECTORY_OFT_INDEX, 8);
+        while (token != DirectoryPage.END_TOKEN) {
+            DirectoryPage page = this.listDirectory(token, LS_PAGE_SIZE);
+            for (DirectoryEntry entry : page.getEntries()) {
+                output.append(entry.getName()).append(" ");
+            }
+            token = page.getNextToken();
+        }
+        return output.toString();
+    }
+    
+    /**
+     * Streams the directory a page at a time. Pass 0 as the token for the
+     * first page and afterwards whatever getNextToken() handed back. Reads
+     * the directory blocks directly (or the OFT buffer for the block that
+     * is currently loaded) so the shared directory cursor is never moved.
+     */
+    public synchronized DirectoryPage listDirectory(int token, int pageSize) {
+        DirectoryPage page = new DirectoryPage(pageSize);
+        if (token < 0 || pageSize <= 0) {
+            return page;
+        }
+        
+        int bufferedBlockNumb = Math.min(
+                this.oft.getBlockNumb(DIRECTORY_OFT_INDEX), MAX_FILE_BLOCKS);
+        int loadedBlockNumb = -1;
+        byte[] block = null;
+        
+        int slot = token;
+        while (slot < IO.NUMB_DESCRIPTORS && page.getEntries().size() < pageSize) {
+            int filePos = slot * DIRECORY_ENTRY_SIZE;
+            int blockNumb = this.oft.posToBlockIndex(filePos) + 1;
+            int offset = this.oft.posToNewBlockPos(filePos);
             
-            if (!Utils.isBlockFree(nameFile)) { 
-                String name = new String(Arrays.copyOfRange(nameFile, 0, 4));
-                name = name.trim();
-                output += name + " ";
+            // only touch each directory block once per page
+            if (blockNumb != loadedBlockNumb) {
+                loadedBlockNumb = blockNumb;
+                block = null;
+                if (blockNumb == bufferedBlockNumb) {
+                    block = this.oft.getBuffer(DIRECTORY_OFT_INDEX);
+                }
+                else if (isDescriptorBlockExist(0, blockNumb)) {
+                    block = io.readBlock(blockNumToBlockIndex(0, blockNumb));
+                }
             }
-            else {
+            slot++;
+            
+            // unallocated directory blocks hold no entries
+            if (block == null || Utils.isByteFree(block[offset])) {
                 continue;
             }
+            String name = new String(block, offset, MAX_SYMBOLIC_FILENAME).trim();
+            int descNumb = Utils.intUnpack(block, offset + DIRECORY_ENTRY_SIZE/2);
+            int length = currentFileLength(descNumb);
+            page.add(new DirectoryEntry(name, descNumb, length));
         }
-        this.lseek(DIRECTORY_OFT_INDEX, 0);
-        return output;
+        if (slot < IO.NUMB_DESCRIPTORS) {
+            page.setNextToken(slot);
+        }
+        return page;
     }
     
     private void reinit(byte[][] newLdisk) {    
-        byte[] savedDirectory = this.oft.getBuffer(DIRECTORY_OFT_INDEX);
-        int savedDirectoryLen = this.oft.getFileLength(DIRECTORY_OFT_INDEX);
-        int savedDirectoryDescriptor = this.oft.getDescriptorNumb(DIRECTORY_OFT_INDEX);
-        int savedDirectoryPos = this.oft.getPosition(DIRECTORY_OFT_INDEX);
-        
-        this.io = new IO();
-        this.oft = new OFT(this.io, this.bitmap);
-        
-        // this.bitmap = new BitMap(); Don't clean bitmap!
-        
-        // store the entire directory file
-        this.oft.setBuffer(DIRECTORY_OFT_INDEX, savedDirectory);    
-        this.oft.setPosition(DIRECTORY_OFT_INDEX, savedDirectoryPos);
-        this.oft.setDescriptorNumb(DIRECTORY_OFT_INDEX, savedDirectoryDescriptor);
-        this.oft.setFileLength(DIRECTORY_OFT_INDEX, savedDirectoryLen);
-        
+        IO newIo = new IO();
         for (int i=0; i < newLdisk.length; i++) {
             byte[] block = newLdisk[i];
-            this.io.writeBlock(i, block);
+            // older images have a short block 0, it is full size now
+            if (i == 0 && block.length < IO.BLOCK_SIZE) {
+                byte[] padded = Utils.getClearBytes(IO.BLOCK_SIZE);
+                System.arraycopy(block, 0, padded, 0, block.length);
+                block = padded;
+            }
+            newIo.writeBlock(i, block);
+        }
+        this.remount(newIo);
+    }
+    
+    /**
+     * Swap in a whole new disk. Only block 0, the descriptors and the
+     * directory are touched here, so a lazily paged IO stays lazy for
+     * everything else.
+     */
+    private void remount(IO newIo) {
+        boolean compressBlocks = this.io.isBlockCompression();
+        boolean dedupBlocks = (this.io.getDedupTable() != null);
+        BlockTrace trace = this.io.getTrace();
+        // the old disk is gone, its store goes back to the pool
+        this.io.release();
+        this.io = newIo;
+        this.io.setBlockCompression(compressBlocks);
+        this.io.setDeduplication(dedupBlocks);
+        this.io.setTrace(trace);
+        
+        // the bitmap comes straight out of block 0, images without one get
+        // it rebuilt from the descriptors. Crash recovery: lengths are only
+        // written at a sync, after the data (see VolumeFile.writeDirty), so
+        // the descriptors are trusted as they are. Block 0 may come from an
+        // older sync than a descriptor block though, so anything a
+        // descriptor points at is marked taken on top of the stored bitmap.
+        this.bitmap = new BitMap();
+        byte[] blockZero = this.io.readBlock(0);
+        if (BitMap.isStored(blockZero)) {
+            this.bitmap.loadFrom(blockZero);
         }
+        rebuildBitmap();
         // close open files
         for (int i=1; i <= 3; i++) {
             this.bitmap.setZero(i);
         }
+        this.bitmap.setOne(0);
+        
+        // the directory buffer has to mirror its first block
+        this.oft = new OFT(this.io, this.bitmap);
+        this.oft.readBuffer(DIRECTORY_OFT_INDEX, 1, this);
+        this.freeDescriptors = countFreeDescriptors();
+    }
+    
+    /**
+     * mark every block some descriptor (or the directory) points at
+     */
+    private void rebuildBitmap() {
+        for (int descNumb=0; descNumb <= IO.NUMB_DESCRIPTORS; descNumb++) {
+            if (descNumb != 0 && !isDescriptorExist(descNumb)) {
+                continue;
+            }
+            for (int blockNumb=1; blockNumb <= MAX_FILE_BLOCKS; blockNumb++) {
+                if (isDescriptorBlockExist(descNumb, blockNumb)) {
+                    int blockIndex = blockNumToBlockIndex(descNumb, blockNumb);
+                    if (!this.bitmap.isOne(blockIndex)) {
+                        this.bitmap.setOne(blockIndex);
+                    }
+                }
+            }
+        }
+    }
+    
+    private byte[] parseRow(String row) {
+        String[] stringBytes = row.split(FileSystem.BYTE_DELIMITER);
+
+        byte[] bytes = new byte[stringBytes.length];
+        for (int j=0; j < bytes.length; j++) {
+            bytes[j] = Byte.parseByte(stringBytes[j]);
+        }
+        return bytes;
     }
     
-    private byte[][] buildLdisk(String backup) {
+    /**
+     * Images saved with checksums start with the checksum table as an
+     * extra row (it is the only row that long). Those must hold every
+     * block and match the table, older images are taken as they are.
+     */
+    private byte[][] buildLdisk(String backup) throws IOException {
         String[] rows = backup.split(FileSystem.BLOCK_DELIMITER);   
         byte[][] ldisk = new byte[IO.LDISK_SIZE][0];
         
-        for (int i=0; i < rows.length; i++) {
-            String row = rows[i];
-            String[] stringBytes = row.split(FileSystem.BYTE_DELIMITER);
-
-            byte[] bytes = new byte[stringBytes.length];
-            for (int j=0; j < bytes.length; j++) {
-                bytes[j] = Byte.parseByte(stringBytes[j]);
+        int[] checksums = null;
+        int first = 0;
+        byte[] firstRow = parseRow(rows[0]);
+        if (firstRow.length == BlockChecksums.TABLE_SIZE) {
+            checksums = BlockChecksums.decode(firstRow);
+            first = 1;
+            if (rows.length - first != IO.LDISK_SIZE) {
+                throw new IOException("disk image is truncated, " 
+                        + (rows.length - first) + " of " + IO.LDISK_SIZE + " blocks");
             }
-            ldisk[i] = bytes;
+        }
+        for (int i=first; i < rows.length; i++) {
+            ldisk[i - first] = (i == 0) ? firstRow : parseRow(rows[i]);
+        }
+        if (checksums != null) {
+            BlockChecksums.verify(ldisk, checksums);
         }
         return ldisk;
     }
     
+    /**
+     * ldisk index of every block of a file indexed by block number (1-3),
+     * -1 for holes
+     */
+    private int[] fileBlockIndices(int descNumb) {
+        int[] indices = new int[MAX_FILE_BLOCKS + 1];
+        indices[0] = -1;
+        for (int blockNumb=1; blockNumb <= MAX_FILE_BLOCKS; blockNumb++) {
+            indices[blockNumb] = blockNumToBlockIndexOrNone(descNumb, blockNumb);
+        }
+        return indices;
+    }
+    
+    /**
+     * number of contiguous runs the file's blocks make up, in block order
+     */
+    private static int countExtents(int[] indices) {
+        int extents = 0;
+        int prev = -1;
+        for (int blockNumb=1; blockNumb <= MAX_FILE_BLOCKS; blockNumb++) {
+            if (indices[blockNumb] == -1) {
+                continue;
+            }
+            if (prev == -1 || indices[blockNumb] != prev + 1) {
+                extents++;
+            }
+            prev = indices[blockNumb];
+        }
+        return extents;
+    }
+    
+    private static int countBlocks(int[] indices) {
+        int count = 0;
+        for (int blockNumb=1; blockNumb <= MAX_FILE_BLOCKS; blockNumb++) {
+            if (indices[blockNumb] != -1) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    private boolean isFileInUse(int descNumb) {
+        if (descNumb == 0) {
+            return true;
+        }
+        return isDescriptorExist(descNumb);
+    }
+    
+    public synchronized FragmentationReport fragmentation() {
+        int files = 0;
+        int fragmented = 0;
+        int extents = 0;
+        for (int descNumb=0; descNumb <= IO.NUMB_DESCRIPTORS; descNumb++) {
+            if (!isFileInUse(descNumb)) {
+                continue;
+            }
+            int fileExtents = countExtents(fileBlockIndices(descNumb));
+            files++;
+            extents += fileExtents;
+            if (fileExtents > 1) {
+                fragmented++;
+            }
+        }
+        int freeExtents = 0;
+        for (int i=BitMap.FIRST_DATA_BLOCK; i < IO.LDISK_SIZE; i++) {
+            if (!bitmap.isOne(i) && (i == BitMap.FIRST_DATA_BLOCK || bitmap.isOne(i - 1))) {
+                freeExtents++;
+            }
+        }
+        return new FragmentationReport(files, fragmented, extents,
+                bitmap.countFreeDataBlocks(), freeExtents, bitmap.largestFreeRun());
+    }
+    
+    /**
+     * Relocate data blocks, at most blockBudget of them, so files become
+     * contiguous and free space ends up in one run at the end of the disk.
+     * A file is always moved whole into blocks that are free: its data is
+     * copied first, then all its pointers are switched with one descriptor
+     * write and only then are the old blocks freed, so at no point does a
+     * descriptor point at anything but a complete copy. Files open for
+     * writing are left alone. Returns the number of blocks moved, 0 once
+     * there is nothing left to do (or nothing fits in the budget).
+     */
+    public synchronized int defragment(int blockBudget) {
+        if (this.readOnly) {
+            return 0;
+        }
+        // directory blocks may move, its buffer must be on disk first
+        this.oft.writeBuffer(DIRECTORY_OFT_INDEX, this.oft.getBlockNumb(DIRECTORY_OFT_INDEX), this);
+        int moved = 0;
+        int step = this.defragmentStep(blockBudget);
+        while (step > 0) {
+            moved += step;
+            step = this.defragmentStep(blockBudget - moved);
+        }
+        if (moved > 0) {
+            this.afterUpdate();
+        }
+        return moved;
+    }
+    
+    /**
+     * one file move: first a fragmented file into the lowest free run that
+     * holds it, otherwise fill the lowest gap that has used blocks after
+     * it with a contiguous file from further up
+     */
+    private int defragmentStep(int budget) {
+        int[][] files = new int[IO.NUMB_DESCRIPTORS + 1][];
+        for (int descNumb=0; descNumb <= IO.NUMB_DESCRIPTORS; descNumb++) {
+            boolean open = (descNumb != 0 && 
+                    this.oft.getOFTIndexFromDescriptor(descNumb) != COMMAND_FAIL);
+            if (isFileInUse(descNumb) && !open) {
+                files[descNumb] = fileBlockIndices(descNumb);
+            }
+        }
+        
+        for (int descNumb=0; descNumb <= IO.NUMB_DESCRIPTORS; descNumb++) {
+            if (files[descNumb] == null || countExtents(files[descNumb]) <= 1) {
+                continue;
+            }
+            int count = countBlocks(files[descNumb]);
+            int runStart = bitmap.closestDataRun(count);
+            if (count <= budget && runStart != BitMap.BITMAP_ERR) {
+                relocateFile(descNumb, files[descNumb], runStart);
+                return count;
+            }
+        }
+        
+        int gapStart = -1;
+        for (int i=BitMap.FIRST_DATA_BLOCK; i < IO.LDISK_SIZE; i++) {
+            if (!bitmap.isOne(i)) {
+                if (gapStart == -1) {
+                    gapStart = i;
+                }
+                continue;
+            }
+            if (gapStart == -1) {
+                continue;
+            }
+            // gap [gapStart, i) with used blocks after it
+            int gapLength = i - gapStart;
+            int best = -1;
+            int bestCount = 0;
+            for (int descNumb=0; descNumb <= IO.NUMB_DESCRIPTORS; descNumb++) {
+                if (files[descNumb] == null || countExtents(files[descNumb]) != 1) {
+                    continue;
+                }
+                int count = countBlocks(files[descNumb]);
+                int start = lowestIndex(files[descNumb]);
+                if (start < i || count > gapLength || count > budget) {
+                    continue;
+                }
+                // the file right behind the gap closes it for good
+                if (start == i) {
+                    best = descNumb;
+                    break;
+                }
+                if (count > bestCount) {
+                    best = descNumb;
+                    bestCount = count;
+                }
+            }
+            if (best != -1) {
+                relocateFile(best, files[best], gapStart);
+                return countBlocks(files[best]);
+            }
+            gapStart = -1;
+        }
+        return 0;
+    }
+    
+    private static int lowestIndex(int[] indices) {
+        for (int blockNumb=1; blockNumb <= MAX_FILE_BLOCKS; blockNumb++) {
+            if (indices[blockNumb] != -1) {
+                return indices[blockNumb];
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * copy a file's blocks into the free run at runStart, then switch the
+     * descriptor over in one write and free the old blocks
+     */
+    private void relocateFile(int descNumb, int[] indices, int runStart) {
+        int descIndex = getDescriptorIndex(descNumb);
+        int descBlockPos = getDescriptorBlockPosition(descNumb);
+        byte[] descriptor = io.readBlock(descIndex);
+        
+        int count = countBlocks(indices);
+        int[] sources = new int[count];
+        int target = runStart;
+        for (int blockNumb=1; blockNumb <= MAX_FILE_BLOCKS; blockNumb++) {
+            if (indices[blockNumb] == -1) {
+                continue;
+            }
+            sources[target - runStart] = indices[blockNumb];
+            bitmap.setOne(target);
+            Utils.intPack(descriptor, target, (blockNumb * 4) + descBlockPos);
+            target++;
+        }
+        // the target is always one run, the source is when compacting
+        byte[] run = new byte[count * IO.BLOCK_SIZE];
+        if (Utils.isContiguous(sources, count)) {
+            io.readBlocks(sources[0], count, run);
+        }
+        else {
+            for (int k=0; k < count; k++) {
+                System.arraycopy(io.readBlock(sources[k]), 0, run, k * IO.BLOCK_SIZE, IO.BLOCK_SIZE);
+            }
+        }
+        io.writeBlocks(runStart, count, run);
+        io.writeBlock(descIndex, descriptor);
+        
+        for (int blockNumb=1; blockNumb <= MAX_FILE_BLOCKS; blockNumb++) {
+            if (indices[blockNumb] != -1) {
+                bitmap.setZero(indices[blockNumb]);
+            }
+        }
+    }
+    
+    /**
+     * Defragment in the background, moving at most blocksPerSecond blocks
+     * a second. Each slice takes the volume lock only for its own moves,
+     * so the file system stays usable meanwhile. The thread stops by
+     * itself once there is nothing left to move.
+     */
+    public synchronized void startDefragmenter(int blocksPerSecond) {
+        this.defragRate = Math.max(1, blocksPerSecond);
+        this.defragmenter = new Thread(new Runnable() {
+            public void run() {
+                runDefragmenter();
+            }
+        }, "volume-defragmenter");
+        this.defragmenter.setDaemon(true);
+        this.defragmenter.start();
+    }
+    
+    public synchronized void stopDefragmenter() {
+        this.defragmenter = null;
+        this.notifyAll();
+    }
+    
+    public synchronized boolean isDefragmenting() {
+        return (this.defragmenter != null);
+    }
+    
+    private synchronized void runDefragmenter() {
+        Thread me = Thread.currentThread();
+        // budget builds up slice by slice, a whole file has to fit in it
+        long credit = 0;
+        long perSlice = Math.max(1, this.defragRate * DEFRAG_SLICE_MS / 1000);
+        while (this.defragmenter == me) {
+            try {
+                this.wait(DEFRAG_SLICE_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (this.defragmenter != me) {
+                return;
+            }
+            credit = Math.min(credit + perSlice, Math.max(perSlice, MAX_FILE_BLOCKS));
+            int moved = this.defragment((int) credit);
+            if (moved == 0 && credit >= MAX_FILE_BLOCKS) {
+                this.defragmenter = null; // done
+            }
+            credit -= moved;
+        }
+    }
+    
     /**
      * Restore ldisk from fn.txt
      * (Or create new if no fn.txt exists).
      */
-    public String init(String[] chunkedInput) throws IOException {
+    public synchronized String init(String[] chunkedInput) throws IOException {
         boolean fileExists = (chunkedInput.length == 2);
         if (fileExists) { 
             // restore the file
             String filename = chunkedInput[1];
+            // a different disk is coming in, the old volume file stays as is
+            this.detachVolume();
+            if (VolumeFile.isVolumeFile(filename)) {
+                VolumeFile source = new VolumeFile(filename);
+                try {
+                    this.reinit(source.readAll());
+                } finally {
+                    source.close();
+                }
+                return "disk restored";
+            }
+            if (ImageCodec.isCompressedImage(filename)) {
+                // only the chunk table is read now, blocks are paged
+                // in from the image the first time they are used
+                this.remount(new IO(new PagedImage(filename)));
+                return "disk restored";
+            }
             BufferedReader br = new BufferedReader(new FileReader(filename));
             try {
                 StringBuilder sb = new StringBuilder();
@@ -693,17 +1747,405 @@ public class FileSystem {
         }
     }
     
-    public void save(String fn) throws FileNotFoundException {
+    public synchronized void save(String fn) throws FileNotFoundException {
         // write our OFT into disk before saving because we may have contents
         // within the OFT that has not been serialized yet.
         
         this.oft.saveEverything(this);
+        this.bitmap.flushTo(this.io);
+        // the image we are paging from may be the one being overwritten
+        this.io.pageInAll();
         
         PrintWriter out = new PrintWriter(fn);
+        out.write(serializeLdisk(this.io));
+        out.close();
+    }
+    
+    /**
+     * Same as save(...) but writes a chunked, deflate compressed binary
+     * image, level is the usual 0 (store) to 9 (smallest). init(...)
+     * recognizes these images on its own.
+     */
+    public synchronized int saveCompressed(String fn, int level) throws IOException {
+        if (!ImageCodec.isValidLevel(level)) {
+            return COMMAND_FAIL;
+        }
+        this.oft.saveEverything(this);
+        this.bitmap.flushTo(this.io);
+        this.io.pageInAll();
+        ImageCodec.write(this.io, fn, level);
+        return COMMAND_SUCCEED;
+    }
+    
+    /**
+     * keep mostly-empty or repetitive blocks packed in memory
+     */
+    public synchronized void setBlockCompression(boolean compressBlocks) {
+        this.io.setBlockCompression(compressBlocks);
+    }
+    
+    /**
+     * share identical blocks in memory, see DedupTable
+     */
+    public synchronized void setDeduplication(boolean enabled) {
+        this.io.setDeduplication(enabled);
+    }
+    
+    /**
+     * dedup ratio and hashing cost, or null when dedup is off
+     */
+    public synchronized String dedupReport() {
+        DedupTable dedup = this.io.getDedupTable();
+        if (dedup == null) {
+            return null;
+        }
+        return dedup.report();
+    }
+    
+    /**
+     * descriptor number of the named file, or COMMAND_FAIL
+     */
+    private int lookupDescriptor(byte[] filename) {
+        int position = this.searchDirectoryEntry(filename);
+        if (position == COMMAND_FAIL) {
+            return COMMAND_FAIL;
+        }
+        byte[] nameEntry = getDirectoryEntry(position);
+        return Utils.intUnpack(nameEntry, DIRECORY_ENTRY_SIZE/2);
+    }
+    
+    /**
+     * Copy a host file into a new file on the volume. The host file is
+     * read straight into one block aligned array with a single channel
+     * read, all blocks are allocated in one extent and written as whole
+     * blocks, bypassing the OFT byte by byte path. Like writeFile anything
+     * past MAX_FILESIZE is cut off. Returns the number of bytes imported.
+     */
+    public synchronized int importFile(String hostPath, byte[] filename) 
+            throws IOException {
+        if (this.readOnly || fileAlreadyExists(filename)) {
+            return COMMAND_FAIL;
+        }
+        FileChannel in = FileChannel.open(Paths.get(hostPath), StandardOpenOption.READ);
+        byte[] data;
+        int length = 0;
+        try {
+            int goalBytes = (int) Math.min(in.size(), MAX_FILESIZE);
+            int numbBlocks = (goalBytes + IO.BLOCK_SIZE - 1) / IO.BLOCK_SIZE;
+            data = Utils.getClearBytes(numbBlocks * IO.BLOCK_SIZE);
+            ByteBuffer dst = ByteBuffer.wrap(data, 0, goalBytes);
+            while (dst.hasRemaining()) {
+                if (in.read(dst) < 0) {
+                    break;
+                }
+            }
+            length = dst.position();
+        } finally {
+            in.close();
+        }
+        
+        int numbBlocks = (length + IO.BLOCK_SIZE - 1) / IO.BLOCK_SIZE;
+        int available = bitmap.countFreeDataBlocks() - this.oft.getReservedCount();
+        if (numbBlocks > available) {
+            return COMMAND_FAIL;
+        }
+        if (this.create(filename) != COMMAND_SUCCEED) {
+            return COMMAND_FAIL;
+        }
+        int descNumb = lookupDescriptor(filename);
+        if (length > 0 && length <= INLINE_CAPACITY) {
+            writeInline(descNumb, data, length);
+            this.afterUpdate();
+            return length;
+        }
+        
+        int[] blockNumbs = new int[numbBlocks];
+        for (int k=0; k < numbBlocks; k++) {
+            blockNumbs[k] = k + 1;
+        }
+        int[] indices = newDescriptorExtent(descNumb, blockNumbs, numbBlocks);
+        if (Utils.isContiguous(indices, numbBlocks)) {
+            io.writeBlocks(indices[0], numbBlocks, data);
+        }
+        else {
+            for (int k=0; k < numbBlocks; k++) {
+                int offset = k * IO.BLOCK_SIZE;
+                io.writeBlock(indices[k], Arrays.copyOfRange(data, offset, offset + IO.BLOCK_SIZE));
+            }
+        }
+        setDescriptorLength(descNumb, length);
+        this.afterUpdate();
+        return length;
+    }
+    
+    /**
+     * Copy a file from the volume out to the host. A file laid out in one
+     * run is read with a single readBlocks, otherwise block by block, and
+     * goes to the channel in one write. If the file is open its buffer is
+     * flushed first. Returns the number of bytes exported.
+     */
+    public synchronized int exportFile(byte[] filename, String hostPath) 
+            throws IOException {
+        int descNumb = lookupDescriptor(filename);
+        if (descNumb == COMMAND_FAIL) {
+            return COMMAND_FAIL;
+        }
+        int length = getDescriptorLength(descNumb);
+        int oftIndex = this.oft.getOFTIndexFromDescriptor(descNumb);
+        if (oftIndex != COMMAND_FAIL) {
+            this.oft.writeBuffer(oftIndex, this.oft.getBlockNumb(oftIndex), this);
+            this.oft.flushDelayed(oftIndex, this);
+            length = this.oft.getFileLength(oftIndex);
+        }
+        
+        // a small file may sit in its descriptor, then that is all there is
+        byte[] data = readInline(descNumb);
+        if (data == null) {
+            int numbBlocks = (length + IO.BLOCK_SIZE - 1) / IO.BLOCK_SIZE;
+            int[] indices = new int[numbBlocks];
+            for (int k=0; k < numbBlocks; k++) {
+                indices[k] = blockNumToBlockIndexOrNone(descNumb, k + 1);
+            }
+            data = new byte[numbBlocks * IO.BLOCK_SIZE];
+            readFileBlocks(indices, numbBlocks, data);
+        }
+        
+        FileChannel out = FileChannel.open(Paths.get(hostPath), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer src = ByteBuffer.wrap(data, 0, length);
+            while (src.hasRemaining()) {
+                out.write(src);
+            }
+        } finally {
+            out.close();
+        }
+        return length;
+    }
+    
+    /**
+     * Read the given blocks of a file back to back into data, with a
+     * single readBlocks when they form one run. Holes read as empty.
+     */
+    private void readFileBlocks(int[] indices, int numbBlocks, byte[] data) {
+        if (Utils.isContiguous(indices, numbBlocks)) {
+            io.readBlocks(indices[0], numbBlocks, data);
+            return;
+        }
+        for (int k=0; k < numbBlocks; k++) {
+            byte[] block;
+            if (indices[k] != -1) {
+                block = io.readBlock(indices[k]);
+            }
+            else {
+                block = Utils.getClearBytes(IO.BLOCK_SIZE); // hole
+            }
+            System.arraycopy(block, 0, data, k * IO.BLOCK_SIZE, IO.BLOCK_SIZE);
+        }
+    }
+    
+    /**
+     * Attach a file backed volume. An existing volume file is loaded (just
+     * like in), a new one is written out from the current disk. After that
+     * changes reach the file according to the durability mode.
+     */
+    public synchronized void attachVolume(String fn, DurabilityMode mode) 
+            throws IOException {
+        this.detachVolume();
+        VolumeFile newVolume = new VolumeFile(fn);
+        if (newVolume.hasVolume()) {
+            this.reinit(newVolume.readAll());
+            this.io.clearDirty();
+        }
+        else {
+            this.oft.saveEverything(this);
+            this.bitmap.flushTo(this.io);
+            this.io.pageInAll();
+            newVolume.writeAll(this.io);
+            newVolume.force(true);
+        }
+        this.volume = newVolume;
+        this.setDurability(mode);
+    }
+    
+    /**
+     * final sync, then let go of the volume file
+     */
+    public synchronized void detachVolume() throws IOException {
+        if (this.volume == null) {
+            return;
+        }
+        this.setDurability(DurabilityMode.NONE);
+        this.sync();
+        this.volume.close();
+        this.volume = null;
+    }
+    
+    /**
+     * Done with this file system for good: the volume file is detached, the
+     * defragmenter stops and the disk's block store goes back to the
+     * BlockPool for the next volume. Snapshots and read views taken
+     * earlier keep working, they hold on to the blocks they share.
+     */
+    public synchronized void release() throws IOException {
+        this.stopDefragmenter();
+        try {
+            this.detachVolume();
+        } finally {
+            this.io.release();
+        }
+    }
+    
+    public synchronized void setDurability(DurabilityMode mode) {
+        this.durability = mode;
+        // an old flusher notices it was replaced and exits
+        this.flusher = null;
+        if (mode == DurabilityMode.WRITE_BACK && this.volume != null) {
+            this.flusher = new Thread(new Runnable() {
+                public void run() {
+                    runFlusher();
+                }
+            }, "volume-flusher");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+        this.notifyAll();
+    }
+    
+    public synchronized DurabilityMode getDurability() {
+        return this.durability;
+    }
+    
+    /**
+     * write-back tunables: how often the flusher runs, and how many dirty
+     * blocks make it run early
+     */
+    public synchronized void setWriteBack(long flushIntervalMs, int dirtyThreshold) {
+        this.flushIntervalMs = flushIntervalMs;
+        this.dirtyThreshold = dirtyThreshold;
+        this.notifyAll();
+    }
+    
+    /**
+     * Push everything out to the volume file: OFT buffers (placing delayed
+     * blocks), the bitmap, then only the dirty blocks. Write-back only
+     * forces data, the other modes force metadata as well.
+     */
+    public synchronized void sync() throws IOException {
+        if (this.volume == null) {
+            return;
+        }
+        this.oft.saveEverything(this);
+        this.bitmap.flushTo(this.io);
+        this.volume.writeDirty(this.io);
+        this.volume.force(this.durability != DurabilityMode.WRITE_BACK);
+    }
+    
+    private void syncQuietly() {
+        try {
+            this.sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * called at the end of every operation that changed the disk
+     */
+    private void afterUpdate() {
+        if (this.durability == DurabilityMode.WRITE_THROUGH) {
+            this.syncQuietly();
+        }
+        else if (this.durability == DurabilityMode.WRITE_BACK &&
+                this.io.getDirtyCount() >= this.dirtyThreshold) {
+            this.notifyAll(); // wake the flusher early
+        }
+    }
+    
+    private synchronized void runFlusher() {
+        Thread me = Thread.currentThread();
+        while (this.flusher == me) {
+            try {
+                this.wait(this.flushIntervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (this.flusher == me && this.io.getDirtyCount() > 0) {
+                this.syncQuietly();
+            }
+        }
+    }
+    
+    /**
+     * Freeze the current state of the disk. Open buffers are flushed first,
+     * after that only block references and the bitmap are copied, so this
+     * costs the same regardless of how much data is on the disk. Until the
+     * snapshot is released every block written goes out of line, and
+     * release() cannot hand the disk back to the BlockPool.
+     */
+    public synchronized Snapshot snapshot() {
+        this.oft.saveEverything(this);
+        this.bitmap.flushTo(this.io);
+        return new Snapshot(this.io.snapshot(), this.bitmap.copy(), this);
+    }
+    
+    /**
+     * Consistent read-only view of a file as it is right now, null if
+     * there is no such file. Reading it never takes this file system's
+     * lock, writes carry on copy-on-write until the view is closed.
+     */
+    public synchronized ReadView openReadView(byte[] filename) {
+        if (lookupDescriptor(filename) == COMMAND_FAIL) {
+            return null;
+        }
+        Snapshot version = this.openVersion();
+        FileSystem mount = version.mount();
+        return new ReadView(version, mount, mount.open(filename));
+    }
+    
+    /**
+     * same for the directory, with a cursor of its own
+     */
+    public synchronized ReadView openDirectoryView() {
+        Snapshot version = this.openVersion();
+        return new ReadView(version, version.mount(), DIRECTORY_OFT_INDEX);
+    }
+    
+    /**
+     * same as snapshot(), the version is handed back when its read view
+     * is closed
+     */
+    private Snapshot openVersion() {
+        this.oft.saveEverything(this);
+        this.bitmap.flushTo(this.io);
+        return new Snapshot(this.io.openVersion(), this.bitmap.copy(), this);
+    }
+    
+    /**
+     * a snapshot or a read view's version is done with the blocks
+     */
+    synchronized void releaseVersion(Snapshot version) {
+        this.io.releaseVersion(version.getIO());
+    }
+    
+    /**
+     * text form used by sv, blocks separated by $$ and bytes by **
+     */
+    static String serializeLdisk(IO io) {
         StringBuilder textForm = new StringBuilder();
         
+        // checksum table goes first, a cut off image is then easy to spot
+        byte[] table = BlockChecksums.encode(io.getChecksums());
+        for (int j=0; j < table.length; j++) {
+            textForm.append(table[j]);
+            if (j != table.length - 1) {
+                textForm.append(FileSystem.BYTE_SEP);
+            }
+        }
+        textForm.append(FileSystem.BLOCK_SEP);
+        
         for (int i=0; i < IO.LDISK_SIZE; i++) {
-            byte[] row = this.io.readBlock(i);      
+            byte[] row = io.readBlock(i);      
             for (int j=0; j < row.length; j++) {
                 textForm.append(row[j]);
                 // don't append a delimiter to the very end
@@ -715,9 +2157,6 @@ public class FileSystem {
                 textForm.append(FileSystem.BLOCK_SEP);
             }
         }
-        
-        String output = textForm.toString();
-        out.write(output);
-        out.close();
+        return textForm.toString();
     }
 }
@@ -0,0 +1,17 @@
+public class FirstFitPolicy implements AllocationPolicy {
+    /**
+     * The original behaviour: lowest free run from block 7 on. Packs
+     * everything at the front of the disk, but always scans the same
+     * crowded prefix to get past it.
+     */
+
+    @Override
+    public int allocateRun(BitMap bitmap, int count, int hint) {
+        return bitmap.closestDataRun(count);
+    }
+
+    @Override
+    public String getName() {
+        return "first";
+    }
+}
@@ -0,0 +1,72 @@
+public class FragmentationReport {
+    /**
+     * How scattered a volume is, as handed out by FileSystem.fragmentation().
+     * A file (the directory counts as one) is fragmented when its blocks
+     * are not one contiguous run in block number order. Free space is
+     * fragmented when the free blocks are not one run.
+     */
+
+    private int files;
+    private int fragmentedFiles;
+    private int extents;
+    private int freeBlocks;
+    private int freeExtents;
+    private int largestFreeRun;
+
+    public FragmentationReport(int files, int fragmentedFiles, int extents,
+            int freeBlocks, int freeExtents, int largestFreeRun) {
+        this.files = files;
+        this.fragmentedFiles = fragmentedFiles;
+        this.extents = extents;
+        this.freeBlocks = freeBlocks;
+        this.freeExtents = freeExtents;
+        this.largestFreeRun = largestFreeRun;
+    }
+
+    public int getFiles() {
+        return this.files;
+    }
+
+    public int getFragmentedFiles() {
+        return this.fragmentedFiles;
+    }
+
+    public int getExtents() {
+        return this.extents;
+    }
+
+    public int getFreeBlocks() {
+        return this.freeBlocks;
+    }
+
+    public int getFreeExtents() {
+        return this.freeExtents;
+    }
+
+    public int getLargestFreeRun() {
+        return this.largestFreeRun;
+    }
+
+    public double getExtentsPerFile() {
+        return (this.files == 0) ? 0 : (double) this.extents / this.files;
+    }
+
+    /**
+     * 0 when all free space is one run, towards 1 the more it is split
+     */
+    public double getFreeFragmentation() {
+        if (this.freeBlocks == 0) {
+            return 0;
+        }
+        return 1.0 - (double) this.largestFreeRun / this.freeBlocks;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("files %d fragmented %d extents/file %.2f "
+                + "free %d free runs %d largest %d free frag %.2f",
+                this.files, this.fragmentedFiles, this.getExtentsPerFile(),
+                this.freeBlocks, this.freeExtents, this.largestFreeRun,
+                this.getFreeFragmentation());
+    }
+}
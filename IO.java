@@ -1,11 +1,15 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
 // Lucas Ou-Yang
 // #27404511
 
 public class IO {
     /**
      * Presents a disk as a linear sequence of blocks. Implement mainly with a
-     * byte array: ldisk[L][B], L = # of logical blocks on disk B = block length
-     * (in bytes)
+     * single flat byte array of L * B bytes, L = # of logical blocks on disk
+     * B = block length (in bytes), block i starts at offset i * B.
      * 
      * The file system, instead of the driver, will be interfacing with the IO
      * system as an abstraction.
@@ -14,7 +18,9 @@ public class IO {
      * readBlock(blockNum) and writeBlock(blockNum, readFrom).
      * 
      * No direct access to ldisk is allowed! We also must be able to write both
-     * chars and integers as we are storing both locations and text.
+     * chars and integers as we are storing both locations and text. Blocks
+     * are copied in on write and copied out on read, callers never hold a
+     * reference into the store.
      */
 
     public static final int NUMB_DESCRIPTOR_BLOCKS = 6;
@@ -23,54 +29,494 @@ public class IO {
     public static final int LDISK_SIZE = 64; // blocks
     public static final int BLOCK_SIZE = 64; // 64 bytes ~ 16 integers
     public static final int DIRECTORY_DESCRIPTOR_SIZE = 16; // 16 bytes ~ 4 integers
+    public static final int BITMAP_SIZE = 8; // 64 bits, one per block
+    // block 0 holds the directory descriptor followed by the bitmap, it is
+    // a full size block like every other but only this much of it is used
+    public static final int BLOCK_ZERO_SIZE = DIRECTORY_DESCRIPTOR_SIZE + BITMAP_SIZE;
     public static final byte EMPTY_BYTE = -1;
     public static final int DESCRIPTOR_SIZE = 16;
+    private static final int EMPTY_CHECKSUM = emptyChecksum();
 
-    private byte[][] ldisk;
+    // drawn from BlockPool.shared() and handed back by release()
+    private byte[] ldisk;
+    // Blocks living outside the flat store: packed blocks, interned
+    // (dedup) blocks and blocks rewritten after the store was frozen by a
+    // snapshot. Out of line arrays are never modified in place, a write
+    // always replaces them. null means the block is in the flat store.
+    private byte[][] outOfLine;
+    // the flat store is referenced by a snapshot, it must not be written
+    private boolean storeShared;
+    // snapshots and versions sharing the store, each one is given back
+    // with releaseVersion(...). A view's store is always pinned, it
+    // belongs to the IO the view came from.
+    private boolean storePinned;
+    private int openVersions;
+    // blocks held run-length packed (see Utils.packBlock)
+    private boolean[] packed;
+    private boolean compressBlocks;
+    // blocks interned in the dedup table, null table when dedup is off
+    private boolean[] deduped;
+    private DedupTable dedup;
+    // lazily mounted image, blocks not paged in yet are marked here
+    private PagedImage pager;
+    private boolean[] unpaged;
+    // blocks written since the last sync to a VolumeFile
+    private boolean[] dirty;
+    private int dirtyCount;
+    // CRC32C of every block, kept current by writeBlock(...)
+    private int[] checksums;
+    // records block accesses for the scheduler simulation, null when off
+    private BlockTrace trace;
 
     public IO() {
-        // second dimension is zero b/c we build "jagged" array
-        this.ldisk = new byte[LDISK_SIZE][0];
+        // comes filled with "empties"
+        this.ldisk = BlockPool.shared().acquire();
+        this.outOfLine = new byte[LDISK_SIZE][];
+        this.packed = new boolean[LDISK_SIZE];
+        this.deduped = new boolean[LDISK_SIZE];
+        this.unpaged = new boolean[LDISK_SIZE];
+        this.dirty = new boolean[LDISK_SIZE];
+        this.checksums = new int[LDISK_SIZE];
+        Arrays.fill(this.checksums, EMPTY_CHECKSUM);
+    }
 
-        // directory descriptor is 16 bytes
-        this.ldisk[0] = new byte[DIRECTORY_DESCRIPTOR_SIZE];
+    private static int emptyChecksum() {
+        byte[] empty = new byte[BLOCK_SIZE];
+        Arrays.fill(empty, EMPTY_BYTE);
+        return BlockChecksums.compute(empty);
+    }
+
+    /**
+     * Lazy mount: no block is read until someone asks for it, then its
+     * whole chunk is paged in from the image.
+     */
+    public IO(PagedImage pager) {
+        this();
+        this.pager = pager;
+        Arrays.fill(this.unpaged, true);
+    }
 
-        for (int i=1; i < this.ldisk.length; i++) {
-            this.ldisk[i] = new byte[BLOCK_SIZE]; // 64 bytes 
+    private void pageIn(int blockIndex) {
+        int chunk = PagedImage.chunkOf(blockIndex);
+        byte[][] paged;
+        try {
+            paged = this.pager.loadChunk(chunk);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int first = PagedImage.firstBlockOf(chunk);
+        int last = Math.min(first + ImageCodec.CHUNK_BLOCKS, LDISK_SIZE);
+        for (int i=first; i < last; i++) {
+            // anything written since the mount is newer than the image
+            if (this.unpaged[i]) {
+                this.storeBlock(i, paged[i]);
+            }
+        }
+    }
+
+    public void pageInAll() {
+        if (this.pager == null) {
+            return;
+        }
+        for (int i=0; i < LDISK_SIZE; i++) {
+            if (this.unpaged[i]) {
+                this.pageIn(i);
+            }
+        }
+        this.pager = null;
+    }
+
+    /**
+     * The volume is done with this disk: the image is let go and the flat
+     * store goes back to the BlockPool, unless a snapshot or an open
+     * version still shares it. Nothing may be read or written afterwards.
+     */
+    public void release() {
+        this.closeImage();
+        if (this.ldisk != null && !this.storeShared) {
+            BlockPool.shared().release(this.ldisk);
+        }
+        this.ldisk = null;
+    }
+
+    /**
+     * let go of the image file if we still hold on to it
+     */
+    public void closeImage() {
+        if (this.pager != null) {
+            this.pager.close();
+            this.pager = null;
+        }
+    }
+
+    /**
+     * Copy-on-write snapshot. The flat store and the out of line arrays
+     * are shared, not copied. From now on neither side writes into the
+     * store, the next writeBlock(...) of a block moves it out of line,
+     * until the snapshot is handed back through releaseVersion(...). A
+     * snapshot that is never handed back keeps every later write out of
+     * line, and the store out of the BlockPool, for as long as this IO
+     * lives.
+     */
+    public IO snapshot() {
+        return this.openVersion();
+    }
+
+    /**
+     * Same view as snapshot(), for a reader that hands it back through
+     * releaseVersion(...) when done. Writes keep going out of line in the
+     * meantime, so the version never changes under the reader.
+     */
+    public IO openVersion() {
+        this.openVersions++;
+        return this.share();
+    }
+
+    /**
+     * A snapshot or a reader is done with its view. Once the last one
+     * sharing the flat store is back the blocks rewritten in the meantime
+     * are folded back into the store, which leaves the old versions of
+     * those blocks to be overwritten, and writes go in place again.
+     */
+    public void releaseVersion(IO version) {
+        // the store may have been dropped since, the version held the old one
+        if (version.ldisk != this.ldisk || this.openVersions == 0) {
+            return;
         }
+        this.openVersions--;
+        if (this.openVersions > 0 || this.storePinned) {
+            return;
+        }
+        this.storeShared = false;
+        if (this.ldisk == null) {
+            return;
+        }
+        for (int i=0; i < LDISK_SIZE; i++) {
+            byte[] stored = this.outOfLine[i];
+            if (stored != null && !this.packed[i] && !this.deduped[i]) {
+                System.arraycopy(stored, 0, this.ldisk, this.blockOffset(i), BLOCK_SIZE);
+                this.outOfLine[i] = null;
+            }
+        }
+    }
+
+    public int getOpenVersions() {
+        return this.openVersions;
+    }
+
+    public boolean isStoreShared() {
+        return this.storeShared;
+    }
+
+    private IO share() {
+        // the frozen view has to stand on its own once the live side
+        // lets go of the image
+        this.pageInAll();
+        this.storeShared = true;
         
-        // fill the ldisk with "empties"
-        for (int i=0; i < this.ldisk.length; i++) {
-            for (int j=0; j < this.ldisk[i].length; j++) {
-                this.ldisk[i][j] = EMPTY_BYTE;
+        IO frozen = new IO(this);
+        return frozen;
+    }
+
+    /**
+     * view sharing another IO's blocks, used by snapshot()
+     */
+    private IO(IO other) {
+        this.ldisk = other.ldisk;
+        this.storeShared = true;
+        // versions opened on a view (a read view of a mounted snapshot)
+        // must never fold into a store the view does not own
+        this.storePinned = true;
+        this.outOfLine = other.outOfLine.clone();
+        this.packed = other.packed.clone();
+        this.deduped = new boolean[LDISK_SIZE];
+        this.unpaged = new boolean[LDISK_SIZE];
+        this.dirty = new boolean[LDISK_SIZE];
+        this.checksums = other.checksums.clone();
+        this.compressBlocks = other.compressBlocks;
+    }
+
+    /**
+     * Optionally keep mostly-empty or repetitive blocks run-length packed.
+     * Turning it on (or off) repacks everything already on the disk.
+     */
+    public void setBlockCompression(boolean compressBlocks) {
+        this.compressBlocks = compressBlocks;
+        for (int i=0; i < LDISK_SIZE; i++) {
+            // blocks not paged in yet get packed on their way in
+            if (!this.unpaged[i]) {
+                this.storeBlock(i, this.fetchBlock(i));
+            }
+        }
+        this.releaseStoreIfUnused();
+    }
+
+    /**
+     * once every block lives out of line (an idle, fully packed disk) the
+     * flat store is dead weight, it comes back on the next in line write
+     */
+    private void releaseStoreIfUnused() {
+        for (int i=0; i < LDISK_SIZE; i++) {
+            if (this.outOfLine[i] == null && !this.unpaged[i]) {
+                return;
+            }
+        }
+        if (this.ldisk != null && !this.storeShared) {
+            BlockPool.shared().release(this.ldisk);
+        }
+        this.ldisk = null;
+        this.storeShared = false;
+        // nothing shares the next store
+        this.storePinned = false;
+        this.openVersions = 0;
+    }
+
+    public boolean isBlockCompression() {
+        return this.compressBlocks;
+    }
+
+    /**
+     * Optionally share identical blocks through a DedupTable. Blocks
+     * already on the disk are interned right away.
+     */
+    public void setDeduplication(boolean enabled) {
+        if (enabled && this.dedup == null) {
+            this.dedup = new DedupTable();
+            for (int i=0; i < LDISK_SIZE; i++) {
+                if (!this.unpaged[i]) {
+                    this.storeBlock(i, this.fetchBlock(i));
+                }
+                // otherwise interned when paged in
+            }
+        }
+        else if (!enabled) {
+            // interned blocks stay out of line, they may alias each other
+            this.dedup = null;
+            Arrays.fill(this.deduped, false);
+        }
+    }
+
+    public DedupTable getDedupTable() {
+        return this.dedup;
+    }
+
+    /**
+     * bytes actually held for block data, the flat store plus whatever
+     * lives out of line (packed blocks count their packed length)
+     */
+    public int footprint() {
+        int total = (this.ldisk == null) ? 0 : this.ldisk.length;
+        for (int i=0; i < LDISK_SIZE; i++) {
+            if (this.outOfLine[i] != null) {
+                total += this.outOfLine[i].length;
             }
         }
+        return total;
+    }
+
+    public boolean isDirty(int blockIndex) {
+        return this.dirty[blockIndex];
+    }
+
+    public int getDirtyCount() {
+        return this.dirtyCount;
+    }
+
+    public void clearDirty(int blockIndex) {
+        if (this.dirty[blockIndex]) {
+            this.dirty[blockIndex] = false;
+            this.dirtyCount--;
+        }
+    }
+
+    public void clearDirty() {
+        Arrays.fill(this.dirty, false);
+        this.dirtyCount = 0;
     }
 
     /**
-     * returns index of selected block, only full block operations 
+     * record every block read and write into trace, null stops recording
+     */
+    public void setTrace(BlockTrace trace) {
+        this.trace = trace;
+    }
+
+    public BlockTrace getTrace() {
+        return this.trace;
+    }
+
+    public int getChecksum(int blockIndex) {
+        if (this.unpaged[blockIndex]) {
+            this.pageIn(blockIndex);
+        }
+        return this.checksums[blockIndex];
+    }
+
+    /**
+     * checksum table of the whole disk, pages everything in
+     */
+    public int[] getChecksums() {
+        this.pageInAll();
+        return this.checksums.clone();
+    }
+
+    private int blockOffset(int blockIndex) {
+        return blockIndex * BLOCK_SIZE;
+    }
+
+    /**
+     * returns a copy of the selected block, only full block operations 
      * are allowed on read() and write() methods.
      */
     public byte[] readBlock(int blockIndex) {
-        return this.ldisk[blockIndex];
+        if (this.trace != null) {
+            this.trace.record(blockIndex, 1, false);
+        }
+        return this.fetchBlock(blockIndex);
+    }
+
+    private byte[] fetchBlock(int blockIndex) {
+        if (this.unpaged[blockIndex]) {
+            this.pageIn(blockIndex);
+        }
+        byte[] stored = this.outOfLine[blockIndex];
+        if (stored != null) {
+            if (this.packed[blockIndex]) {
+                return Utils.unpackBlock(stored, BLOCK_SIZE);
+            }
+            return stored.clone();
+        }
+        int offset = this.blockOffset(blockIndex);
+        return Arrays.copyOfRange(this.ldisk, offset, offset + BLOCK_SIZE);
+    }
+
+    /**
+     * Copy count blocks starting at start into dst, back to back. When the
+     * whole range sits in the flat store this is a single copy, otherwise
+     * it falls back to block by block.
+     */
+    public void readBlocks(int start, int count, byte[] dst) {
+        if (this.trace != null) {
+            this.trace.record(start, count, false);
+        }
+        if (this.isInLine(start, count)) {
+            System.arraycopy(this.ldisk, this.blockOffset(start), dst, 0, count * BLOCK_SIZE);
+            return;
+        }
+        for (int k=0; k < count; k++) {
+            byte[] block = this.fetchBlock(start + k);
+            System.arraycopy(block, 0, dst, k * BLOCK_SIZE, BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Write count blocks from src (back to back) starting at start. A
+     * single copy into the flat store when nothing has to be packed,
+     * interned or kept off a shared store.
+     */
+    public void writeBlocks(int start, int count, byte[] src) {
+        if (this.trace != null) {
+            this.trace.record(start, count, true);
+        }
+        boolean plain = !this.compressBlocks && this.dedup == null 
+                && !this.storeShared && this.ldisk != null;
+        if (!plain) {
+            for (int k=0; k < count; k++) {
+                int offset = k * BLOCK_SIZE;
+                this.storeBlock(start + k, Arrays.copyOfRange(src, offset, offset + BLOCK_SIZE));
+            }
+            return;
+        }
+        System.arraycopy(src, 0, this.ldisk, this.blockOffset(start), count * BLOCK_SIZE);
+        for (int k=0; k < count; k++) {
+            int blockIndex = start + k;
+            this.unpaged[blockIndex] = false;
+            this.checksums[blockIndex] = BlockChecksums.compute(src, k * BLOCK_SIZE, BLOCK_SIZE);
+            if (!this.dirty[blockIndex]) {
+                this.dirty[blockIndex] = true;
+                this.dirtyCount++;
+            }
+            this.packed[blockIndex] = false;
+            this.outOfLine[blockIndex] = null;
+        }
+    }
+
+    /**
+     * every block of the range lives in the flat store and is paged in
+     */
+    private boolean isInLine(int start, int count) {
+        if (this.ldisk == null) {
+            return false;
+        }
+        for (int i=start; i < start + count; i++) {
+            if (this.unpaged[i] || this.outOfLine[i] != null) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void writeBlock(int blockIndex, byte[] readFrom) {
+        if (this.trace != null) {
+            this.trace.record(blockIndex, 1, true);
+        }
+        this.storeBlock(blockIndex, readFrom);
+    }
+
+    private void storeBlock(int blockIndex, byte[] readFrom) {
         // never change the original block size
-        assert(readFrom.length == this.ldisk[blockIndex].length); 
-        this.ldisk[blockIndex] = readFrom;
+        assert(readFrom.length == BLOCK_SIZE); 
+        this.unpaged[blockIndex] = false;
+        this.checksums[blockIndex] = BlockChecksums.compute(readFrom);
+        if (!this.dirty[blockIndex]) {
+            this.dirty[blockIndex] = true;
+            this.dirtyCount++;
+        }
+        
+        byte[] stored = null;
+        this.packed[blockIndex] = false;
+        if (this.compressBlocks) {
+            stored = Utils.packBlock(readFrom);
+            this.packed[blockIndex] = (stored != null);
+        }
+        
+        if (this.deduped[blockIndex]) {
+            this.dedup.release(this.outOfLine[blockIndex]);
+            this.deduped[blockIndex] = false;
+        }
+        if (this.dedup != null) {
+            // the table keeps the array, so it must be our own copy
+            if (stored == null) {
+                stored = readFrom.clone();
+            }
+            stored = this.dedup.intern(stored);
+            this.deduped[blockIndex] = true;
+        }
+        
+        if (stored == null && this.storeShared) {
+            // the store belongs to a snapshot as well, keep off it
+            stored = readFrom.clone();
+        }
+        if (stored == null && this.ldisk == null) {
+            this.ldisk = BlockPool.shared().acquire();
+        }
+        if (stored == null) {
+            System.arraycopy(readFrom, 0, this.ldisk, this.blockOffset(blockIndex), BLOCK_SIZE);
+        }
+        this.outOfLine[blockIndex] = stored;
     }
         
     /**
-     * Print out the contents of the 2-D ldisk.
+     * Print out the contents of the ldisk, block by block.
      */
     public void printDisk() {
-        for (int i=0; i<this.ldisk.length; i++) {
+        for (int i=0; i<LDISK_SIZE; i++) {
             System.out.print("|ROW " + i + "|");
-            for (int j=0; j<this.ldisk[i].length; j++) {
-                System.out.print(" " + this.ldisk[i][j]);
+            byte[] row = this.fetchBlock(i);
+            for (int j=0; j<row.length; j++) {
+                System.out.print(" " + row[j]);
             }
             System.out.print("\r\n");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class IOQueue {
+    /**
+     * Request queue in front of a SimulatedDisk. Requests arrive on the
+     * virtual clock, the IOScheduler picks which pending one goes next,
+     * and pending requests of the same kind that continue it on either
+     * side are merged into the same dispatch (up to MAX_MERGE_BLOCKS).
+     */
+
+    public static final int MAX_MERGE_BLOCKS = 16;
+
+    private SimulatedDisk disk;
+    private IOScheduler scheduler;
+    private boolean merging = true;
+
+    public IOQueue(SimulatedDisk disk, IOScheduler scheduler) {
+        this.disk = disk;
+        this.scheduler = scheduler;
+    }
+
+    public void setMerging(boolean merging) {
+        this.merging = merging;
+    }
+
+    /**
+     * Run requests (in arrival order) through the queue until all of
+     * them completed.
+     */
+    public LatencyStats replay(List<IORequest> requests) {
+        LatencyStats stats = new LatencyStats();
+        List<IORequest> pending = new ArrayList<IORequest>();
+        long start = this.disk.getClock();
+        int next = 0;
+        
+        while (next < requests.size() || !pending.isEmpty()) {
+            // everything that has arrived by now joins the queue
+            while (next < requests.size() 
+                    && requests.get(next).getArrival() <= this.disk.getClock()) {
+                pending.add(requests.get(next++));
+            }
+            if (pending.isEmpty()) {
+                this.disk.idleUntil(requests.get(next).getArrival());
+                continue;
+            }
+            int pick = this.scheduler.next(pending, this.disk.getHead(), this.disk.getClock());
+            List<IORequest> batch = new ArrayList<IORequest>();
+            batch.add(pending.remove(pick));
+            int first = batch.get(0).getBlock();
+            int end = batch.get(0).getEnd();
+            if (this.merging) {
+                boolean grew = true;
+                while (grew) {
+                    grew = false;
+                    for (int i=0; i < pending.size(); i++) {
+                        IORequest other = pending.get(i);
+                        boolean sameKind = (other.isWrite() == batch.get(0).isWrite());
+                        boolean fits = (Math.max(end, other.getEnd()) 
+                                - Math.min(first, other.getBlock()) <= MAX_MERGE_BLOCKS);
+                        boolean touches = (other.getBlock() == end || other.getEnd() == first
+                                || (other.getBlock() >= first && other.getEnd() <= end));
+                        if (sameKind && fits && touches) {
+                            batch.add(pending.remove(i));
+                            first = Math.min(first, other.getBlock());
+                            end = Math.max(end, other.getEnd());
+                            grew = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            long done = this.disk.access(first, end - first);
+            stats.recordDispatch();
+            for (IORequest request : batch) {
+                request.setCompletion(done);
+                stats.record(request);
+            }
+        }
+        stats.setElapsed(this.disk.getClock() - start);
+        return stats;
+    }
+}
@@ -0,0 +1,54 @@
+public class IORequest {
+    /**
+     * One block request waiting in an IOQueue: count blocks from block,
+     * a read or a write, arriving at a point on the virtual clock.
+     */
+
+    private int block;
+    private int count;
+    private boolean write;
+    private long arrival;
+    private long completion;
+
+    public IORequest(int block, int count, boolean write, long arrival) {
+        this.block = block;
+        this.count = count;
+        this.write = write;
+        this.arrival = arrival;
+    }
+
+    public int getBlock() {
+        return this.block;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    /**
+     * one past the last block
+     */
+    public int getEnd() {
+        return this.block + this.count;
+    }
+
+    public boolean isWrite() {
+        return this.write;
+    }
+
+    public long getArrival() {
+        return this.arrival;
+    }
+
+    public long getCompletion() {
+        return this.completion;
+    }
+
+    public void setCompletion(long completion) {
+        this.completion = completion;
+    }
+
+    public long getLatency() {
+        return this.completion - this.arrival;
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.List;
+
+public interface IOScheduler {
+    /**
+     * Picks which pending request an IOQueue services next. Schedulers
+     * may keep state between picks (SCAN's direction for one).
+     */
+
+    /**
+     * index into pending (never empty) of the request to service next,
+     * head is the block under the head and now the virtual clock
+     */
+    int next(List<IORequest> pending, int head, long now);
+
+    String getName();
+
+    /**
+     * driver spelling: fifo, sstf, scan, deadline
+     */
+    static IOScheduler fromName(String name) {
+        if (name.equals("fifo")) {
+            return new FifoScheduler();
+        }
+        else if (name.equals("sstf")) {
+            return new SstfScheduler();
+        }
+        else if (name.equals("scan")) {
+            return new ScanScheduler();
+        }
+        else if (name.equals("deadline")) {
+            return new DeadlineScheduler();
+        }
+        return null;
+    }
+}
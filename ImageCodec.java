@@ -0,0 +1,261 @@
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class ImageCodec {
+    /**
+     * Binary, deflate compressed alternative to the $$ / ** text images
+     * written by sv. The disk is cut into chunks of CHUNK_BLOCKS blocks and
+     * every chunk is deflated on its own, so on load all chunks can be
+     * inflated in parallel.
+     * 
+     * Layout: MAGIC, chunk count, then per chunk the raw length, the
+     * compressed length and the compressed bytes, then the block checksum
+     * table (see BlockChecksums). Images from before checksums end right
+     * after the last chunk.
+     */
+
+    public static final int MAGIC = 0x43534649; // "CSFI"
+    public static final int CHUNK_BLOCKS = 16;
+    public static final int NUMB_CHUNKS = (IO.LDISK_SIZE + CHUNK_BLOCKS - 1) / CHUNK_BLOCKS;
+    // MAGIC plus the chunk count
+    public static final int HEADER_SIZE = 8;
+    // per chunk, raw and compressed length
+    public static final int CHUNK_HEADER_SIZE = 8;
+    public static final int MIN_LEVEL = Deflater.NO_COMPRESSION; // 0
+    public static final int MAX_LEVEL = Deflater.BEST_COMPRESSION; // 9
+
+    public static boolean isValidLevel(int level) {
+        return (level >= MIN_LEVEL && level <= MAX_LEVEL);
+    }
+
+    /**
+     * compressed images start with MAGIC, text images with a digit or '-'
+     */
+    public static boolean isCompressedImage(String fn) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(fn));
+        try {
+            return (in.readInt() == MAGIC);
+        } catch (IOException e) {
+            return false; // shorter than the magic, can't be ours
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void write(IO io, String fn, int level) throws IOException {
+        int numbChunks = NUMB_CHUNKS;
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fn)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(numbChunks);
+
+            Deflater deflater = new Deflater(level);
+            byte[] scratch = new byte[CHUNK_BLOCKS * IO.BLOCK_SIZE * 2];
+            for (int c=0; c < numbChunks; c++) {
+                byte[] raw = rawChunk(io, c);
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+                int compressedLen = 0;
+                while (!deflater.finished()) {
+                    compressedLen += deflater.deflate(scratch, compressedLen,
+                            scratch.length - compressedLen);
+                }
+                out.writeInt(raw.length);
+                out.writeInt(compressedLen);
+                out.write(scratch, 0, compressedLen);
+            }
+            deflater.end();
+            out.write(BlockChecksums.encode(io.getChecksums()));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the blocks in the same shape buildLdisk(...) does, ready to
+     * be handed to reinit. Chunks are inflated in parallel.
+     */
+    public static byte[][] read(String fn) throws IOException {
+        long fileLength = new File(fn).length();
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(fn)));
+        final byte[][] compressed;
+        final int[] rawLengths;
+        int[] checksums;
+        try {
+            int numbChunks = readHeader(in, fn);
+            compressed = new byte[numbChunks][];
+            rawLengths = new int[numbChunks];
+            long pos = HEADER_SIZE;
+            for (int c=0; c < numbChunks; c++) {
+                rawLengths[c] = in.readInt();
+                int compressedLength = in.readInt();
+                pos += CHUNK_HEADER_SIZE;
+                checkChunk(c, rawLengths[c], compressedLength, fileLength - pos, fn);
+                compressed[c] = new byte[compressedLength];
+                in.readFully(compressed[c]);
+                pos += compressedLength;
+            }
+            checksums = readChecksums(in);
+        } catch (EOFException e) {
+            throw new IOException("disk image is truncated: " + fn, e);
+        } finally {
+            in.close();
+        }
+
+        final byte[][] ldisk = new byte[IO.LDISK_SIZE][];
+        // the first failure wins, the others are dropped
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        IntStream.range(0, compressed.length).parallel().forEach(c -> {
+            try {
+                byte[] raw = inflate(compressed[c], rawLengths[c]);
+                splitChunk(raw, c, ldisk);
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        for (int i=0; i < ldisk.length; i++) {
+            if (ldisk[i] == null) {
+                throw new IOException("disk image is missing block " + i);
+            }
+        }
+        if (checksums != null) {
+            BlockChecksums.verify(ldisk, checksums);
+        }
+        return ldisk;
+    }
+
+    /**
+     * Reads MAGIC and the chunk count, shared with PagedImage. Only images
+     * of exactly NUMB_CHUNKS chunks fit the disk.
+     */
+    static int readHeader(DataInput in, String fn) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a compressed disk image: " + fn);
+        }
+        int numbChunks = in.readInt();
+        if (numbChunks != NUMB_CHUNKS) {
+            throw new IOException("disk image has " + numbChunks + " chunks, expected " 
+                    + NUMB_CHUNKS + ": " + fn);
+        }
+        return numbChunks;
+    }
+
+    /**
+     * Bounds of one chunk table entry, remaining is what the file holds
+     * past the entry. A chunk never inflates to more than CHUNK_BLOCKS
+     * blocks, and its compressed bytes have to be in the file.
+     */
+    static void checkChunk(int chunk, int rawLength, int compressedLength, long remaining, 
+            String fn) throws IOException {
+        if (rawLength < 0 || rawLength > CHUNK_BLOCKS * IO.BLOCK_SIZE) {
+            throw new IOException("disk image chunk " + chunk + " has a bad length: " + fn);
+        }
+        if (compressedLength < 0 || compressedLength > remaining) {
+            throw new IOException("disk image is truncated in chunk " + chunk + ": " + fn);
+        }
+    }
+
+    /**
+     * the table trailing the chunks, null for images without one
+     */
+    static int[] readChecksums(DataInput in) throws IOException {
+        byte[] table = new byte[BlockChecksums.TABLE_SIZE];
+        int got = 0;
+        try {
+            for (; got < table.length; got++) {
+                table[got] = in.readByte();
+            }
+        } catch (EOFException e) {
+            if (got == 0) {
+                return null;
+            }
+            throw new IOException("disk image is truncated in its checksum table");
+        }
+        return BlockChecksums.decode(table);
+    }
+
+    private static byte[] rawChunk(IO io, int chunk) {
+        int first = chunk * CHUNK_BLOCKS;
+        int last = Math.min(first + CHUNK_BLOCKS, IO.LDISK_SIZE);
+        int size = 0;
+        for (int i=first; i < last; i++) {
+            size += io.readBlock(i).length;
+        }
+        byte[] raw = new byte[size];
+        int pos = 0;
+        for (int i=first; i < last; i++) {
+            byte[] block = io.readBlock(i);
+            System.arraycopy(block, 0, raw, pos, block.length);
+            pos += block.length;
+        }
+        return raw;
+    }
+
+    static void splitChunk(byte[] raw, int chunk, byte[][] ldisk)
+            throws IOException {
+        int pos = 0;
+        int first = chunk * CHUNK_BLOCKS;
+        int last = Math.min(first + CHUNK_BLOCKS, IO.LDISK_SIZE);
+        // block 0 used to be short (16 or 24 bytes) in older images,
+        // whatever is left over belongs to it
+        int blockZeroLen = raw.length - (last - first - 1) * IO.BLOCK_SIZE;
+        for (int i=first; i < last; i++) {
+            int len = (i == 0) ? blockZeroLen : IO.BLOCK_SIZE;
+            if (pos + len > raw.length) {
+                throw new IOException("disk image chunk " + chunk + " is truncated");
+            }
+            byte[] block = new byte[len];
+            // older images kept block 0 short, every block is full size now
+            if (i == 0 && len < IO.BLOCK_SIZE) {
+                block = Utils.getClearBytes(IO.BLOCK_SIZE);
+            }
+            System.arraycopy(raw, pos, block, 0, len);
+            ldisk[i] = block;
+            pos += len;
+        }
+    }
+
+    static byte[] inflate(byte[] compressed, int rawLength)
+            throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] raw = new byte[rawLength];
+            int len = 0;
+            while (!inflater.finished() && len < rawLength) {
+                int n = inflater.inflate(raw, len, rawLength - len);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                len += n;
+            }
+            if (len != rawLength) {
+                throw new IOException("disk image chunk is corrupted");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("disk image chunk is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
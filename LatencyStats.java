@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+public class LatencyStats {
+    /**
+     * What an IOQueue replay did: per request latency (completion minus
+     * arrival, on the virtual clock) plus totals for throughput.
+     */
+
+    private long[] latencies;
+    private int count;
+    private long blocks;
+    private int dispatches;
+    private long elapsed;
+
+    public LatencyStats() {
+        this.latencies = new long[64];
+    }
+
+    public void record(IORequest request) {
+        if (this.count == this.latencies.length) {
+            this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+        }
+        this.latencies[this.count++] = request.getLatency();
+        this.blocks += request.getCount();
+    }
+
+    /**
+     * one trip to the disk, possibly serving several merged requests
+     */
+    public void recordDispatch() {
+        this.dispatches++;
+    }
+
+    public void setElapsed(long elapsed) {
+        this.elapsed = elapsed;
+    }
+
+    public int getRequests() {
+        return this.count;
+    }
+
+    public int getDispatches() {
+        return this.dispatches;
+    }
+
+    /**
+     * latency (ns) at or below which p percent of requests finished
+     */
+    public long percentile(double p) {
+        if (this.count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(this.latencies, this.count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(p / 100.0 * this.count) - 1;
+        return sorted[Math.max(0, Math.min(rank, this.count - 1))];
+    }
+
+    /**
+     * blocks per simulated second
+     */
+    public double throughput() {
+        if (this.elapsed == 0) {
+            return 0;
+        }
+        return this.blocks * 1e9 / this.elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("requests %d dispatches %d blocks/s %.0f p50 %.2f ms "
+                + "p95 %.2f ms p99 %.2f ms max %.2f ms",
+                this.count, this.dispatches, this.throughput(),
+                this.percentile(50) / 1e6, this.percentile(95) / 1e6,
+                this.percentile(99) / 1e6, this.percentile(100) / 1e6);
+    }
+}
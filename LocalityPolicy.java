@@ -0,0 +1,42 @@
+public class LocalityPolicy implements AllocationPolicy {
+    /**
+     * Free run closest to the hint, so a file grows next to its previous
+     * block whenever there is room there. Without a hint it is first-fit.
+     */
+
+    @Override
+    public int allocateRun(BitMap bitmap, int count, int hint) {
+        if (hint < BitMap.FIRST_DATA_BLOCK || hint >= IO.LDISK_SIZE) {
+            return bitmap.closestDataRun(count);
+        }
+        int best = BitMap.BITMAP_ERR;
+        int bestDistance = Integer.MAX_VALUE;
+        int runStart = BitMap.FIRST_DATA_BLOCK;
+        int runLength = 0;
+        for (int index = BitMap.FIRST_DATA_BLOCK; index <= IO.LDISK_SIZE; index++) {
+            if (index < IO.LDISK_SIZE && !bitmap.isOne(index)) {
+                if (runLength == 0) {
+                    runStart = index;
+                }
+                runLength++;
+                continue;
+            }
+            if (runLength >= count) {
+                // the spot in this run nearest to the hint
+                int start = Math.max(runStart, Math.min(hint, runStart + runLength - count));
+                int distance = Math.abs(start - hint);
+                if (distance < bestDistance) {
+                    best = start;
+                    bestDistance = distance;
+                }
+            }
+            runLength = 0;
+        }
+        return best;
+    }
+
+    @Override
+    public String getName() {
+        return "near";
+    }
+}
@@ -0,0 +1,46 @@
+public class NextFitPolicy implements AllocationPolicy {
+    /**
+     * First-fit starting where the last allocation ended, wrapping around
+     * at the end of the disk. Spreads allocations over the whole disk and
+     * skips the full prefix first-fit keeps rescanning.
+     */
+
+    private int cursor = BitMap.FIRST_DATA_BLOCK;
+
+    @Override
+    public int allocateRun(BitMap bitmap, int count, int hint) {
+        int runStart = this.search(bitmap, count, this.cursor, IO.LDISK_SIZE);
+        if (runStart == BitMap.BITMAP_ERR) {
+            // runs do not wrap, a run across the cursor is found here
+            int end = Math.min(this.cursor + count - 1, IO.LDISK_SIZE);
+            runStart = this.search(bitmap, count, BitMap.FIRST_DATA_BLOCK, end);
+        }
+        if (runStart != BitMap.BITMAP_ERR) {
+            this.cursor = runStart + count;
+            if (this.cursor >= IO.LDISK_SIZE) {
+                this.cursor = BitMap.FIRST_DATA_BLOCK;
+            }
+        }
+        return runStart;
+    }
+
+    private int search(BitMap bitmap, int count, int from, int to) {
+        int runLength = 0;
+        for (int index = from; index < to; index++) {
+            if (bitmap.isOne(index)) {
+                runLength = 0;
+                continue;
+            }
+            runLength++;
+            if (runLength == count) {
+                return index - count + 1;
+            }
+        }
+        return BitMap.BITMAP_ERR;
+    }
+
+    @Override
+    public String getName() {
+        return "next";
+    }
+}
@@ -11,6 +11,12 @@ public class OFT {
     public static final int OFT_ENTRY_SIZE = 64 + 4 + 4 + 4;
 
     private byte[][] table;
+    // delayed allocation: dirty blocks of a file that have no disk block
+    // yet, indexed [descriptor][block number]. They only get placed on
+    // disk when the file is flushed, so its blocks can be laid out
+    // together. Every entry open on the file shares them, the way they
+    // would share the block on disk.
+    private byte[][][] delayed;
     private IO io;
     private BitMap bitmap;
 
@@ -18,6 +24,7 @@ public class OFT {
         this.io = io;
         this.bitmap = bitmap;
         this.table = new byte[OFT_MAX_SIZE][OFT_ENTRY_SIZE];
+        this.delayed = new byte[IO.NUMB_DESCRIPTORS + 1][FileSystem.MAX_FILE_BLOCKS + 1][];
 
         // for every entry in the OFT
         for (int i = 0; i < this.table.length; i++) {
@@ -69,10 +76,21 @@ public class OFT {
         return FileSystem.COMMAND_FAIL;
     }
 
+    /**
+     * the directory is always open, file slots are tracked in the bitmap
+     */
+    public boolean isEntryOpen(int entryIndex) {
+        if (entryIndex == FileSystem.DIRECTORY_OFT_INDEX) {
+            return true;
+        }
+        return bitmap.isOne(entryIndex);
+    }
+
     /**
      * re-use the 3 slots open for files indices (1-3)
      */
     public void clearEntry(int entryIndex) {
+        this.discardDelayed(entryIndex);
         for (int i = 0; i < OFT_ENTRY_SIZE; i++) {
             this.table[entryIndex][i] = IO.EMPTY_BYTE;
         }
@@ -89,7 +107,20 @@ public class OFT {
 
     public byte copyFromTable(int entryIndex, int pos) {
         int normalizedPos = this.posToNewBlockPos(pos);
-        return this.getBuffer(entryIndex)[normalizedPos];
+        return this.table[entryIndex][normalizedPos];
+    }
+
+    /**
+     * bulk versions, the run must not cross the end of the buffer
+     */
+    public void copyToTable(int entryIndex, int pos, byte[] src, int offset, int length) {
+        int normalizedPos = this.posToNewBlockPos(pos);
+        System.arraycopy(src, offset, this.table[entryIndex], normalizedPos, length);
+    }
+
+    public void copyFromTable(int entryIndex, int pos, byte[] dst, int offset, int length) {
+        int normalizedPos = this.posToNewBlockPos(pos);
+        System.arraycopy(this.table[entryIndex], normalizedPos, dst, offset, length);
     }
 
     /**
@@ -105,9 +136,27 @@ public class OFT {
             int descNumb = this.getDescriptorNumb(entryIndex);
             int ldiskBlockIndex = fs.blockNumToBlockIndex(descNumb, blockNumb);
     
-            // if we go overboard, create a new data block
+            // if we go overboard, create a new data block, unless
+            // the buffer is an untouched hole of a sparse file
             if (ldiskBlockIndex == -1) {
-                ldiskBlockIndex = fs.newDescriptorBlock(descNumb);
+                // small enough to live in the descriptor, no block at all
+                if (blockNumb == 1 && this.fitsInline(entryIndex, fs)) {
+                    fs.writeInline(descNumb, buffer, this.getFileLength(entryIndex));
+                    this.delayedOf(entryIndex)[1] = null;
+                    return;
+                }
+                // reserved block, park the data until the file is flushed
+                if (this.isBlockReserved(entryIndex, blockNumb)) {
+                    this.delayedOf(entryIndex)[blockNumb] = buffer;
+                    return;
+                }
+                if (this.isBufferEmpty(entryIndex)) {
+                    return;
+                }
+                ldiskBlockIndex = fs.newDescriptorBlock(descNumb, blockNumb);
+                if (ldiskBlockIndex == FileSystem.OUT_OF_MEMORY_ERR) {
+                    return;
+                }
             }
             // perhaps update filelength here?
             // int fileLength = this.getFileLength(entryIndex);
@@ -119,25 +168,174 @@ public class OFT {
      * read contents of ldisk into buffer
      */
     public void readBuffer(int entryIndex, int blockNumb, FileSystem fs) {
+        // same edge case as writeBuffer, a position at the very end
+        // still buffers the last block
+        if (blockNumb == FileSystem.MAX_FILE_BLOCKS + 1) {
+            blockNumb -= 1;
+        }
         int descNumb = this.getDescriptorNumb(entryIndex);
         int ldiskBlockIndex = fs.blockNumToBlockIndex(descNumb, blockNumb);
 
-        // if we go overboard, create a new data block
+        // holes read back as empty, nothing is allocated for them
+        if (ldiskBlockIndex == -1 && this.isBlockReserved(entryIndex, blockNumb)) {
+            this.setBuffer(entryIndex, this.delayedOf(entryIndex)[blockNumb]);
+            return;
+        }
         if (ldiskBlockIndex == -1) { // error code
-            ldiskBlockIndex = fs.newDescriptorBlock(descNumb);
+            byte[] inline = (blockNumb == 1) ? fs.readInline(descNumb) : null;
+            this.setBuffer(entryIndex, (inline != null) ? inline : Utils.getClearBytes(64));
+            return;
         }
         byte[] data = io.readBlock(ldiskBlockIndex);
         this.setBuffer(entryIndex, data);
     }
 
+    /**
+     * Claim a block of the file without placing it on disk yet. The
+     * caller is responsible for checking there is room for it.
+     */
+    public void reserveBlock(int entryIndex, int blockNumb) {
+        this.delayedOf(entryIndex)[blockNumb] = Utils.getClearBytes(64);
+    }
+
+    /**
+     * same, with the contents the block starts out with
+     */
+    public void reserveBlock(int entryIndex, int blockNumb, byte[] contents) {
+        this.delayedOf(entryIndex)[blockNumb] = contents;
+    }
+
+    /**
+     * The first block of a regular file can stay in its descriptor as long
+     * as the file is no longer than FileSystem.INLINE_CAPACITY and has no
+     * other blocks. The buffer is checked too: in the middle of a write the
+     * length is not updated yet, but the bytes are already there.
+     */
+    private boolean fitsInline(int entryIndex, FileSystem fs) {
+        int descNumb = this.getDescriptorNumb(entryIndex);
+        if (entryIndex == FileSystem.DIRECTORY_OFT_INDEX
+                || this.getFileLength(entryIndex) > FileSystem.INLINE_CAPACITY) {
+            return false;
+        }
+        for (int i = FileSystem.INLINE_CAPACITY; i < 64; i++) {
+            if (!Utils.isByteFree(this.table[entryIndex][i])) {
+                return false;
+            }
+        }
+        for (int b = 2; b <= FileSystem.MAX_FILE_BLOCKS; b++) {
+            if (this.isBlockReserved(entryIndex, b)) {
+                return false;
+            }
+        }
+        if (fs.hasDataBlocks(descNumb)) {
+            return false;
+        }
+        // an empty file stays an empty file
+        return (!this.isBufferEmpty(entryIndex) || fs.isInline(descNumb));
+    }
+
+    public boolean isBlockReserved(int entryIndex, int blockNumb) {
+        if (blockNumb < 1 || blockNumb > FileSystem.MAX_FILE_BLOCKS) {
+            return false;
+        }
+        return (this.delayedOf(entryIndex)[blockNumb] != null);
+    }
+
+    /**
+     * delayed blocks of the file open at the entry
+     */
+    private byte[][] delayedOf(int entryIndex) {
+        return this.delayed[this.getDescriptorNumb(entryIndex)];
+    }
+
+    /**
+     * number of blocks promised to open files but not allocated yet
+     */
+    public int getReservedCount() {
+        int count = 0;
+        for (int i = 0; i < this.delayed.length; i++) {
+            for (int b = 1; b <= FileSystem.MAX_FILE_BLOCKS; b++) {
+                if (this.delayed[i][b] != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drop the file's delayed blocks. Only for a file going away, or once
+     * they have been flushed: other entries open on it lose them too.
+     */
+    public void discardDelayed(int entryIndex) {
+        if (!this.isEntryOpen(entryIndex)) {
+            return;
+        }
+        Arrays.fill(this.delayedOf(entryIndex), null);
+    }
+
+    /**
+     * Place all reserved blocks of the file on disk in one go, whichever
+     * entry open on it they were written through. The r/w buffer has to
+     * be written (parked) before calling this.
+     */
+    public void flushDelayed(int entryIndex, FileSystem fs) {
+        byte[][] pending = this.delayedOf(entryIndex);
+        int[] blockNumbs = new int[FileSystem.MAX_FILE_BLOCKS];
+        int count = 0;
+        for (int b = 1; b <= FileSystem.MAX_FILE_BLOCKS; b++) {
+            if (pending[b] != null) {
+                blockNumbs[count++] = b;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        int descNumb = this.getDescriptorNumb(entryIndex);
+        int[] ldiskBlockIndices = fs.newDescriptorExtent(descNumb, blockNumbs, count);
+        if (Utils.isContiguous(ldiskBlockIndices, count)) {
+            // the usual case, the whole file goes out in one write
+            byte[] run = new byte[count * IO.BLOCK_SIZE];
+            for (int k = 0; k < count; k++) {
+                System.arraycopy(pending[blockNumbs[k]], 0, run, k * IO.BLOCK_SIZE, IO.BLOCK_SIZE);
+                pending[blockNumbs[k]] = null;
+            }
+            io.writeBlocks(ldiskBlockIndices[0], count, run);
+            return;
+        }
+        for (int k = 0; k < count; k++) {
+            if (ldiskBlockIndices[k] != FileSystem.OUT_OF_MEMORY_ERR) {
+                io.writeBlock(ldiskBlockIndices[k], pending[blockNumbs[k]]);
+            }
+            pending[blockNumbs[k]] = null;
+        }
+    }
+
+    public boolean isBufferEmpty(int entryIndex) {
+        for (int i = 0; i < 64; i++) {
+            if (!Utils.isByteFree(this.table[entryIndex][i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * useful for when we need to save all contents of OFT
      * back into ldisk (for example when we are saving the fs)
      */
     public void saveEverything(FileSystem fs) {
         for (int entryIndex=0; entryIndex < this.table.length; entryIndex++) {
+            // closed slots hold no descriptor, nothing to flush
+            if (!this.isEntryOpen(entryIndex)) {
+                continue;
+            }
             int blockNumb = this.getBlockNumb(entryIndex);
             this.writeBuffer(entryIndex, blockNumb, fs);
+            this.flushDelayed(entryIndex, fs);
+            if (entryIndex != FileSystem.DIRECTORY_OFT_INDEX) {
+                fs.flushFileLength(entryIndex);
+            }
         }
     }
     
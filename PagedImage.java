@@ -0,0 +1,104 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class PagedImage {
+    /**
+     * Demand paging over a compressed image (see ImageCodec). Opening it
+     * only reads the chunk table, the chunks themselves are inflated the
+     * first time IO asks for one of their blocks. The file is closed as
+     * soon as every chunk has been handed out.
+     */
+
+    private RandomAccessFile file;
+    private long[] offsets;
+    private int[] rawLengths;
+    private int[] compressedLengths;
+    private boolean[] loaded;
+    private int chunksLeft;
+    // checksum table from the end of the image, null for older images
+    private int[] checksums;
+
+    public PagedImage(String fn) throws IOException {
+        this.file = new RandomAccessFile(fn, "r");
+        try {
+            int numbChunks = ImageCodec.readHeader(this.file, fn);
+            this.offsets = new long[numbChunks];
+            this.rawLengths = new int[numbChunks];
+            this.compressedLengths = new int[numbChunks];
+            this.loaded = new boolean[numbChunks];
+            this.chunksLeft = numbChunks;
+
+            // hop from header to header, skipping the compressed data
+            for (int c=0; c < numbChunks; c++) {
+                this.rawLengths[c] = this.file.readInt();
+                this.compressedLengths[c] = this.file.readInt();
+                this.offsets[c] = this.file.getFilePointer();
+                ImageCodec.checkChunk(c, this.rawLengths[c], this.compressedLengths[c],
+                        this.file.length() - this.offsets[c], fn);
+                this.file.seek(this.offsets[c] + this.compressedLengths[c]);
+            }
+            long left = this.file.length() - this.file.getFilePointer();
+            if (left > 0 && left < BlockChecksums.TABLE_SIZE) {
+                throw new IOException("disk image is truncated in its checksum table: " + fn);
+            }
+            if (left > 0) {
+                byte[] table = new byte[BlockChecksums.TABLE_SIZE];
+                this.file.readFully(table);
+                this.checksums = BlockChecksums.decode(table);
+            }
+        } catch (EOFException e) {
+            this.file.close();
+            throw new IOException("disk image is truncated: " + fn, e);
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    public static int chunkOf(int blockIndex) {
+        return blockIndex / ImageCodec.CHUNK_BLOCKS;
+    }
+
+    public static int firstBlockOf(int chunk) {
+        return chunk * ImageCodec.CHUNK_BLOCKS;
+    }
+
+    /**
+     * Inflate one chunk, returned indexed like ldisk (only the blocks of
+     * this chunk are filled in). Each chunk is handed out once.
+     */
+    public synchronized byte[][] loadChunk(int chunk) throws IOException {
+        if (this.loaded[chunk]) {
+            throw new IOException("chunk " + chunk + " was already paged in");
+        }
+        byte[] compressed = new byte[this.compressedLengths[chunk]];
+        this.file.seek(this.offsets[chunk]);
+        this.file.readFully(compressed);
+
+        byte[][] ldisk = new byte[IO.LDISK_SIZE][];
+        byte[] raw = ImageCodec.inflate(compressed, this.rawLengths[chunk]);
+        ImageCodec.splitChunk(raw, chunk, ldisk);
+        if (this.checksums != null) {
+            // a lazy mount checks each chunk as it comes in
+            int first = firstBlockOf(chunk);
+            int last = Math.min(first + ImageCodec.CHUNK_BLOCKS, IO.LDISK_SIZE);
+            BlockChecksums.verify(ldisk, this.checksums, first, last);
+        }
+
+        this.loaded[chunk] = true;
+        this.chunksLeft--;
+        if (this.chunksLeft == 0) {
+            this.close();
+        }
+        return ldisk;
+    }
+
+    public synchronized void close() {
+        try {
+            this.file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
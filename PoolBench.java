@@ -0,0 +1,89 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+public class PoolBench {
+    /**
+     * Tenant churn: keeps TENANTS small volumes alive and keeps replacing
+     * a random one with a fresh volume that gets a couple of files
+     * written. Prints the time and the bytes allocated per replaced
+     * volume and the collections it cost, once with the BlockPool
+     * recycling stores and once with it keeping none (every volume
+     * allocates its own store, as before the pool).
+     *
+     * Run with: java PoolBench
+     */
+
+    private static final int TENANTS = 4000;
+    private static final int REPLACEMENTS = 200000;
+    private static final long SEED = 42;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%-8s %12s %12s %8s %8s%n", "pool", "ns/volume", "bytes/volume",
+                "GCs", "GC ms");
+        // warm up both ways first
+        churn(0, REPLACEMENTS / 10);
+        churn(BlockPool.DEFAULT_MAX_IDLE, REPLACEMENTS / 10);
+        print("off", churn(0, REPLACEMENTS));
+        print("on", churn(BlockPool.DEFAULT_MAX_IDLE, REPLACEMENTS));
+        System.out.println(BlockPool.shared());
+    }
+
+    private static long[] churn(int maxIdle, int replacements) throws Exception {
+        BlockPool.shared().setMaxIdle(maxIdle);
+        Random random = new Random(SEED);
+        FileSystem[] tenants = new FileSystem[TENANTS];
+        for (int i=0; i < TENANTS; i++) {
+            tenants[i] = newTenant(random);
+        }
+        System.gc();
+        long[] gcBefore = gcCounts();
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i=0; i < replacements; i++) {
+            int victim = random.nextInt(TENANTS);
+            tenants[victim].release();
+            tenants[victim] = newTenant(random);
+        }
+        long nanos = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+        long[] gcAfter = gcCounts();
+        for (int i=0; i < TENANTS; i++) {
+            tenants[i].release();
+        }
+        return new long[] { nanos / replacements, bytes / replacements,
+                gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1] };
+    }
+
+    private static FileSystem newTenant(Random random) {
+        FileSystem fs = new FileSystem();
+        for (int f=0; f < 2; f++) {
+            byte[] name = { (byte) ('a' + f) };
+            fs.create(name);
+            int oftIndex = fs.open(name);
+            fs.writeFile(oftIndex, (byte) ('a' + random.nextInt(26)), 1 + random.nextInt(100));
+            fs.close(oftIndex);
+        }
+        return fs;
+    }
+
+    private static void print(String pool, long[] result) {
+        System.out.printf("%-8s %12d %12d %8d %8d%n", pool, result[0], result[1],
+                result[2], result[3]);
+    }
+
+    private static long[] gcCounts() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+            millis += gc.getCollectionTime();
+        }
+        return new long[] { count, millis };
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+public class ReadView implements Closeable {
+    /**
+     * Read-only view of one file (or of the directory) as it was when
+     * FileSystem.openReadView(...) / openDirectoryView() was called.
+     * Reads go through a private mount of that version with its own
+     * buffer and cursor, so they never wait on the live file system's
+     * lock and writers never disturb them: the writer moves every block
+     * it rewrites out of line while a version is open. Closing the view
+     * gives the version back; after the last one the live disk folds the
+     * copies back (see IO.releaseVersion).
+     */
+
+    private Snapshot version;
+    private FileSystem mount;
+    private int oftIndex;
+    private boolean open;
+
+    public ReadView(Snapshot version, FileSystem mount, int oftIndex) {
+        this.version = version;
+        this.mount = mount;
+        this.oftIndex = oftIndex;
+        this.open = true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!this.open) {
+            throw new IOException("view closed");
+        }
+    }
+
+    public boolean isDirectory() {
+        return (this.oftIndex == FileSystem.DIRECTORY_OFT_INDEX);
+    }
+
+    /**
+     * same as FileSystem.readFile(...), 0 at the end of the file
+     */
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        this.ensureOpen();
+        return this.mount.readFile(this.oftIndex, dst, offset, length);
+    }
+
+    public int seek(int position) throws IOException {
+        this.ensureOpen();
+        return this.mount.lseek(this.oftIndex, position);
+    }
+
+    public int getPosition() throws IOException {
+        this.ensureOpen();
+        return this.mount.getPosition(this.oftIndex);
+    }
+
+    /**
+     * length of the file in this version, the directory's is MAX_FILESIZE
+     */
+    public int getLength() throws IOException {
+        this.ensureOpen();
+        if (this.isDirectory()) {
+            return FileSystem.MAX_FILESIZE;
+        }
+        return this.mount.getFileLength(this.oftIndex);
+    }
+
+    /**
+     * page of the directory as of this version, see
+     * FileSystem.listDirectory(...)
+     */
+    public DirectoryPage listDirectory(int token, int pageSize) throws IOException {
+        this.ensureOpen();
+        return this.mount.listDirectory(token, pageSize);
+    }
+
+    public String ls() throws IOException {
+        this.ensureOpen();
+        return this.mount.ls();
+    }
+
+    public long getTakenAt() {
+        return this.version.getTakenAt();
+    }
+
+    @Override
+    public void close() {
+        if (this.open) {
+            this.open = false;
+            this.mount = null;
+            this.version.release();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class ResponseBuffer {
+    /**
+     * Growable byte output the Driver writes its answers into. It is
+     * cleared and refilled for every command, so after the first few
+     * commands it has grown to size and appending allocates nothing.
+     */
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] bytes;
+    private int size;
+    // scratch for appendInt, digits come out backwards
+    private byte[] digits = new byte[11];
+
+    public ResponseBuffer() {
+        this.bytes = new byte[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    public void clear() {
+        this.size = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * The backing array, only the first size() bytes are the response
+     */
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
+    public void append(byte b) {
+        this.ensureCapacity(this.size + 1);
+        this.bytes[this.size++] = b;
+    }
+
+    public void append(byte[] src, int offset, int length) {
+        this.ensureCapacity(this.size + length);
+        System.arraycopy(src, offset, this.bytes, this.size, length);
+        this.size += length;
+    }
+
+    /**
+     * Appends each char as one byte, meant for the ASCII constants
+     * of the responses ("created", "bytes written", ...)
+     */
+    public void append(String ascii) {
+        int length = ascii.length();
+        this.ensureCapacity(this.size + length);
+        for (int i=0; i < length; i++) {
+            this.bytes[this.size++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    /**
+     * Decimal form of value, same digits as Integer.toString(value)
+     */
+    public void appendInt(int value) {
+        if (value == Integer.MIN_VALUE) {
+            this.append("-2147483648");
+            return;
+        }
+        if (value < 0) {
+            this.append((byte) '-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            this.digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        this.ensureCapacity(this.size + count);
+        while (count > 0) {
+            this.bytes[this.size++] = this.digits[--count];
+        }
+    }
+
+    /**
+     * True if the response is exactly the given ASCII text
+     */
+    public boolean contentEquals(String ascii) {
+        if (ascii.length() != this.size) {
+            return false;
+        }
+        for (int i=0; i < this.size; i++) {
+            if (this.bytes[i] != (byte) ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(this.bytes, 0, this.size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.bytes.length) {
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(capacity, this.bytes.length * 2));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.bytes, 0, this.size);
+    }
+}
@@ -0,0 +1,41 @@
+import java.util.List;
+
+public class ScanScheduler implements IOScheduler {
+    /**
+     * SCAN (elevator): keep moving the head one way, servicing requests
+     * as it passes them, and turn around when nothing is left ahead.
+     */
+
+    private boolean up = true;
+
+    @Override
+    public int next(List<IORequest> pending, int head, long now) {
+        int pick = this.nearestAhead(pending, head);
+        if (pick == -1) {
+            this.up = !this.up;
+            pick = this.nearestAhead(pending, head);
+        }
+        return pick;
+    }
+
+    private int nearestAhead(List<IORequest> pending, int head) {
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i=0; i < pending.size(); i++) {
+            int distance = pending.get(i).getBlock() - head;
+            if (!this.up) {
+                distance = -distance;
+            }
+            if (distance >= 0 && distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String getName() {
+        return "scan";
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.List;
+import java.util.Random;
+
+public class SchedBench {
+    /**
+     * Replays the block accesses of an aged file system through an
+     * IOQueue on a SimulatedDisk, once per scheduler and load level.
+     * The trace is recorded with FileSystem.setTrace while the same kind
+     * of churn AllocBench uses runs, arrivals are a Poisson process with
+     * the given mean gap. Prints throughput in blocks per simulated
+     * second and latency percentiles, with and without request merging.
+     * 
+     * Run with: java SchedBench
+     */
+
+    private static final String[] SCHEDULERS = { "fifo", "sstf", "scan", "deadline" };
+    // mean gap between arrivals: light load, near saturation, overload
+    private static final long[] GAPS_NS = { 20000000L, 10000000L, 7000000L };
+    // the head of the trace, enough to get past warm up
+    private static final int REQUESTS = 20000;
+    private static final long SEED = 42;
+
+    public static void main(String[] args) {
+        FileSystem fs = new FileSystem();
+        BlockTrace trace = new BlockTrace();
+        fs.setTrace(trace);
+        AllocBench.age(fs, new Random(SEED));
+        fs.setTrace(null);
+        System.out.println("trace: " + trace.size() + " accesses");
+        
+        for (long gap : GAPS_NS) {
+            System.out.println();
+            System.out.println(String.format("mean gap %.1f ms", gap / 1e6));
+            for (boolean merging : new boolean[] { false, true }) {
+                for (String name : SCHEDULERS) {
+                    List<IORequest> requests = trace.toRequests(new Random(SEED), gap);
+                    requests = requests.subList(0, Math.min(REQUESTS, requests.size()));
+                    IOQueue queue = new IOQueue(new SimulatedDisk(new DiskModel()), 
+                            IOScheduler.fromName(name));
+                    queue.setMerging(merging);
+                    LatencyStats stats = queue.replay(requests);
+                    System.out.println(String.format("  %-8s %-5s %s", name, 
+                            merging ? "merge" : "", stats));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+public class SimulatedDisk {
+    /**
+     * A disk with a head and a virtual clock, driven by a DiskModel.
+     * Nothing is stored here, it only accounts for how long the block
+     * accesses it is handed would take and in what state they leave the
+     * head. Time only moves forward.
+     */
+
+    private DiskModel model;
+    private long clock;
+    private int head;
+    private long busy;
+
+    public SimulatedDisk(DiskModel model) {
+        this.model = model;
+        this.head = BitMap.FIRST_DATA_BLOCK;
+    }
+
+    /**
+     * service count blocks from start, returns the time it completes
+     */
+    public long access(int start, int count) {
+        long seek = this.model.seekTime(this.head, start);
+        long rotate = this.model.rotationalDelay(start, this.clock + seek);
+        long service = seek + rotate + this.model.transferTime(count);
+        this.clock += service;
+        this.busy += service;
+        this.head = start + count - 1;
+        return this.clock;
+    }
+
+    /**
+     * nothing to do until time, the platter keeps spinning
+     */
+    public void idleUntil(long time) {
+        this.clock = Math.max(this.clock, time);
+    }
+
+    public long getClock() {
+        return this.clock;
+    }
+
+    public int getHead() {
+        return this.head;
+    }
+
+    public long getBusyTime() {
+        return this.busy;
+    }
+
+    public DiskModel getModel() {
+        return this.model;
+    }
+}
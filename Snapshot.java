@@ -0,0 +1,94 @@
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+public class Snapshot {
+    /**
+     * Point in time copy of a volume taken by FileSystem.snapshot(). Holds
+     * a copy-on-write view of the blocks plus a frozen bitmap. Nothing here
+     * is ever written again, so it can be mounted (read-only) or exported
+     * from another thread while the live volume keeps going. Until it is
+     * released the live volume writes every block it changes out of line.
+     */
+
+    private IO io;
+    private BitMap bitmap;
+    private long takenAt;
+    // volume the snapshot was taken of, null if it was not taken of one
+    private FileSystem origin;
+    private boolean released;
+
+    public Snapshot(IO io, BitMap bitmap) {
+        this(io, bitmap, null);
+    }
+
+    public Snapshot(IO io, BitMap bitmap, FileSystem origin) {
+        this.io = io;
+        this.bitmap = bitmap;
+        this.origin = origin;
+        this.takenAt = System.currentTimeMillis();
+    }
+
+    public IO getIO() {
+        return this.io;
+    }
+
+    public BitMap getBitMap() {
+        return this.bitmap;
+    }
+
+    public long getTakenAt() {
+        return this.takenAt;
+    }
+
+    /**
+     * Hand the blocks back to the volume. Once no snapshot or read view
+     * shares them any more, the volume writes in place again. Neither
+     * the snapshot nor anything mounted from it may be used afterwards.
+     */
+    public void release() {
+        synchronized (this) {
+            if (this.released) {
+                return;
+            }
+            this.released = true;
+        }
+        if (this.origin != null) {
+            this.origin.releaseVersion(this);
+        }
+    }
+
+    /**
+     * read-only file system over the frozen blocks
+     */
+    public FileSystem mount() {
+        return new FileSystem(this);
+    }
+
+    /**
+     * write the snapshot out in the same format as sv
+     */
+    public void export(String fn) throws FileNotFoundException {
+        PrintWriter out = new PrintWriter(fn);
+        out.write(FileSystem.serializeLdisk(this.io));
+        out.close();
+    }
+
+    /**
+     * same as export(...) but on a background thread
+     */
+    public Future<Void> exportInBackground(final String fn) {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws FileNotFoundException {
+                export(fn);
+                return null;
+            }
+        });
+        Thread exporter = new Thread(task, "snapshot-export");
+        exporter.setDaemon(true);
+        exporter.start();
+        return task;
+    }
+}
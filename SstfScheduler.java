@@ -0,0 +1,27 @@
+import java.util.List;
+
+public class SstfScheduler implements IOScheduler {
+    /**
+     * Shortest seek time first: the request closest to the head. Great
+     * throughput, but requests far from a busy area can starve.
+     */
+
+    @Override
+    public int next(List<IORequest> pending, int head, long now) {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i=0; i < pending.size(); i++) {
+            int distance = Math.abs(pending.get(i).getBlock() - head);
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String getName() {
+        return "sstf";
+    }
+}
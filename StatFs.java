@@ -0,0 +1,62 @@
+public class StatFs {
+    /**
+     * Usage numbers for a volume as handed out by FileSystem.statfs().
+     * All counts are in blocks except the descriptor and open file counts.
+     * Reserved blocks are promised to open files (delayed allocation) but
+     * not placed on disk yet, they are already taken out of the free count.
+     */
+
+    private int totalBlocks;
+    private int freeBlocks;
+    private int reservedBlocks;
+    private int freeDescriptors;
+    private int openFiles;
+    private int largestFreeExtent;
+
+    public StatFs(int totalBlocks, int freeBlocks, int reservedBlocks,
+            int freeDescriptors, int openFiles, int largestFreeExtent) {
+        this.totalBlocks = totalBlocks;
+        this.freeBlocks = freeBlocks;
+        this.reservedBlocks = reservedBlocks;
+        this.freeDescriptors = freeDescriptors;
+        this.openFiles = openFiles;
+        this.largestFreeExtent = largestFreeExtent;
+    }
+
+    public int getTotalBlocks() {
+        return this.totalBlocks;
+    }
+
+    public int getFreeBlocks() {
+        return this.freeBlocks;
+    }
+
+    public int getUsedBlocks() {
+        return this.totalBlocks - this.freeBlocks;
+    }
+
+    public int getReservedBlocks() {
+        return this.reservedBlocks;
+    }
+
+    public int getFreeDescriptors() {
+        return this.freeDescriptors;
+    }
+
+    public int getOpenFiles() {
+        return this.openFiles;
+    }
+
+    public int getLargestFreeExtent() {
+        return this.largestFreeExtent;
+    }
+
+    @Override
+    public String toString() {
+        return "blocks " + this.totalBlocks + " used " + this.getUsedBlocks()
+                + " free " + this.freeBlocks + " reserved " + this.reservedBlocks
+                + " extent " + this.largestFreeExtent
+                + " descriptors " + this.freeDescriptors
+                + " open " + this.openFiles;
+    }
+}
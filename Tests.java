@@ -1,19 +1,159 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 
 public class Tests {
     // we write a bunch of separate static methods
     // for our unit tests instead of using junit
     
+    // scripts and their expected .OUTPUT, relative to the repo root
+    public static final String TESTS_DIR = "tests/";
+    
     private Driver driver;
+    private int failures;
     
     public Tests() {
         
     }
     
+    private void check(String name, boolean passed) {
+        if (passed) {
+            System.out.println("**" + name + " PASSED");
+        }
+        else {
+            System.out.println("**" + name + " FAILED");
+            this.failures++;
+        }
+    }
+    
+    /**
+     * Runs TESTS_DIR/script through the driver and compares the output
+     * byte for byte with TESTS_DIR/script.OUTPUT. The driver's debug
+     * printing is swallowed.
+     */
+    public void runScript(String script) {
+        String inputFile = TESTS_DIR + script;
+        String outputFile = null;
+        PrintStream console = System.out;
+        try {
+            File output = File.createTempFile("fs-test", ".OUTPUT");
+            output.deleteOnExit();
+            outputFile = output.getPath();
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            }));
+            this.driver = new Driver(inputFile, outputFile);
+            driver.runFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            System.setOut(console);
+        }
+        check(script, outputFile != null 
+                && readBytes(inputFile + ".OUTPUT").equals(readBytes(outputFile)));
+    }
+    
+    private static String readBytes(String filename) {
+        try {
+            return new String(Files.readAllBytes(Paths.get(filename)));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * new file holding length copies of character, closed again
+     */
+    private static void createFile(FileSystem fs, String name, char character, int length) {
+        fs.create(name.getBytes());
+        int oftIndex = fs.open(name.getBytes());
+        fs.writeFile(oftIndex, (byte) character, length);
+        fs.close(oftIndex);
+    }
+    
+    /**
+     * whole contents of a file, null if there is no such file
+     */
+    private static String contents(FileSystem fs, String name) {
+        int oftIndex = fs.open(name.getBytes());
+        if (oftIndex == FileSystem.COMMAND_FAIL) {
+            return null;
+        }
+        String contents = new String(fs.readFile(oftIndex, FileSystem.MAX_FILESIZE));
+        fs.close(oftIndex);
+        return contents;
+    }
+    
+    /**
+     * path of a fresh host file, removed again when the tests exit
+     */
+    private static String tempFile(String suffix) throws IOException {
+        File file = File.createTempFile("fs-test", suffix);
+        file.deleteOnExit();
+        return file.getPath();
+    }
+    
+    private static String repeat(char character, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < count; i++) {
+            sb.append(character);
+        }
+        return sb.toString();
+    }
+    
+    public void testPagedListing() {
+        runScript("paged_listing_test.txt");
+        
+        FileSystem fs = new FileSystem();
+        Set<String> names = new HashSet<String>();
+        for (int i=0; i < 10; i++) {
+            createFile(fs, "f" + i, 'x', i);
+            names.add("f" + i);
+        }
+        // every file exactly once, no page over its size
+        Set<String> listed = new HashSet<String>();
+        boolean sizesOk = true;
+        int pages = 0;
+        int token = 0;
+        do {
+            DirectoryPage page = fs.listDirectory(token, 3);
+            sizesOk &= page.getEntries().size() <= 3;
+            for (DirectoryEntry entry : page.getEntries()) {
+                sizesOk &= listed.add(entry.getName());
+                sizesOk &= entry.getFileLength() == entry.getName().charAt(1) - '0';
+            }
+            token = page.getNextToken();
+            pages++;
+        } while (token != DirectoryPage.END_TOKEN && pages < 100);
+        check("listDirectory pages", sizesOk && listed.equals(names));
+    }
+    
     public void testWriteFileMax() {
         String inputFile = 
                 "/Users/lucas/Dropbox/coding/java_space/CS143B_FileSystems/src/tests/write_max_test.txt";
@@ -117,9 +257,1346 @@ public class Tests {
         return finalStr.trim();
     }
     
+    public void testSnapshots() {
+        FileSystem fs = new FileSystem();
+        createFile(fs, "a", 'x', 100);
+        createFile(fs, "b", 'y', 10);
+        Snapshot snapshot = fs.snapshot();
+        
+        // live changes never reach the snapshot
+        int oftIndex = fs.open("a".getBytes());
+        fs.writeFile(oftIndex, (byte) 'z', 150);
+        fs.close(oftIndex);
+        fs.destroy("b".getBytes());
+        createFile(fs, "c", 'w', 5);
+        
+        FileSystem mount = snapshot.mount();
+        check("snapshot keeps old contents", repeat('x', 100).equals(contents(mount, "a"))
+                && repeat('y', 10).equals(contents(mount, "b"))
+                && contents(mount, "c") == null);
+        check("live volume moved on", repeat('z', 150).equals(contents(fs, "a"))
+                && contents(fs, "b") == null && repeat('w', 5).equals(contents(fs, "c")));
+        
+        // mounts refuse changes
+        int readOnly = mount.open("a".getBytes());
+        check("snapshot mount is read-only", mount.isReadOnly()
+                && mount.writeFile(readOnly, (byte) 'q', 1) == FileSystem.COMMAND_FAIL
+                && repeat('x', 100).equals(contents(snapshot.mount(), "a")));
+        
+        try {
+            String image = tempFile(".txt");
+            snapshot.exportInBackground(image).get();
+            FileSystem restored = new FileSystem();
+            restored.init(new String[] { "in", image });
+            check("snapshot export", repeat('x', 100).equals(contents(restored, "a"))
+                    && repeat('y', 10).equals(contents(restored, "b")));
+        } catch (Exception e) {
+            e.printStackTrace();
+            check("snapshot export", false);
+        }
+        
+        // released snapshots give the store back, writes go in place again
+        IO io = new IO();
+        byte[] block = new byte[IO.BLOCK_SIZE];
+        Arrays.fill(block, (byte) 'a');
+        io.writeBlock(20, block);
+        IO older = io.snapshot();
+        IO newer = io.snapshot();
+        Arrays.fill(block, (byte) 'b');
+        io.writeBlock(20, block);
+        boolean unpinned = io.isStoreShared() && io.footprint() > BlockPool.STORE_BYTES;
+        io.releaseVersion(older);
+        unpinned &= io.isStoreShared() && newer.readBlock(20)[0] == 'a';
+        io.releaseVersion(newer);
+        unpinned &= !io.isStoreShared() && io.getOpenVersions() == 0
+                && io.readBlock(20)[0] == 'b' && io.footprint() == BlockPool.STORE_BYTES;
+        io.writeBlock(21, block);
+        unpinned &= io.footprint() == BlockPool.STORE_BYTES;
+        
+        try {
+            fs = new FileSystem();
+            createFile(fs, "a", 'x', 100);
+            snapshot = fs.snapshot();
+            createFile(fs, "b", 'y', 100);
+            snapshot.release();
+            // a second release is a no-op, it must not count again
+            Snapshot held = fs.snapshot();
+            snapshot.release();
+            createFile(fs, "c", 'z', 100);
+            unpinned &= contents(held.mount(), "c") == null
+                    && repeat('y', 100).equals(contents(held.mount(), "b"));
+            held.release();
+            int idle = BlockPool.shared().getIdleCount();
+            fs.release();
+            unpinned &= BlockPool.shared().getIdleCount() == idle + 1;
+        } catch (IOException e) {
+            e.printStackTrace();
+            unpinned = false;
+        }
+        check("released snapshots unpin the store", unpinned);
+    }
+    
+    public void testCompressedImages() {
+        runScript("compressed_image_test.txt");
+        new File("compressed_image_test.img").delete();
+        
+        try {
+            FileSystem fs = new FileSystem();
+            createFile(fs, "a", 'x', 150);
+            createFile(fs, "b", 'y', 64);
+            boolean sameContents = true;
+            for (int level : new int[] { 0, 1, 9 }) {
+                String image = tempFile(".img");
+                fs.saveCompressed(image, level);
+                FileSystem restored = new FileSystem();
+                restored.init(new String[] { "in", image });
+                sameContents &= repeat('x', 150).equals(contents(restored, "a"))
+                        && repeat('y', 64).equals(contents(restored, "b"))
+                        && ImageCodec.read(image).length == IO.LDISK_SIZE;
+            }
+            check("compressed image round trip", sameContents
+                    && fs.saveCompressed(tempFile(".img"), 10) == FileSystem.COMMAND_FAIL);
+            
+            // a bad chunk table is an IOException, never a bogus disk
+            String image = tempFile(".img");
+            fs.saveCompressed(image, 6);
+            int[][] corruptions = {
+                { 4, -1 }, { 4, ImageCodec.NUMB_CHUNKS - 1 }, { 4, Integer.MAX_VALUE },
+                { 8, -1 }, { 8, ImageCodec.CHUNK_BLOCKS * IO.BLOCK_SIZE + 1 },
+                { 12, -1 }, { 12, Integer.MAX_VALUE }
+            };
+            boolean allRejected = true;
+            for (int[] corruption : corruptions) {
+                String bad = tempFile(".img");
+                Files.copy(Paths.get(image), Paths.get(bad), 
+                        StandardCopyOption.REPLACE_EXISTING);
+                RandomAccessFile file = new RandomAccessFile(bad, "rw");
+                file.seek(corruption[0]);
+                file.writeInt(corruption[1]);
+                file.close();
+                allRejected &= rejects(bad, true) && rejects(bad, false);
+            }
+            check("corrupt image headers rejected", allRejected);
+        } catch (IOException e) {
+            e.printStackTrace();
+            check("compressed image round trip", false);
+        }
+        
+        // packed blocks hold less and read back the same
+        IO io = new IO();
+        byte[] block = Utils.getClearBytes(IO.BLOCK_SIZE);
+        block[3] = 7;
+        io.writeBlock(10, block);
+        int flat = io.footprint();
+        io.setBlockCompression(true);
+        check("block compression", io.footprint() < flat 
+                && Arrays.equals(block, io.readBlock(10)));
+    }
+    
+    /**
+     * true if reading the image eagerly (or mounting it lazily) fails
+     * with an IOException
+     */
+    private static boolean rejects(String image, boolean eager) {
+        try {
+            if (eager) {
+                ImageCodec.read(image);
+            }
+            else {
+                new PagedImage(image).close();
+            }
+        } catch (IOException e) {
+            return true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+    
+    public void testDeduplication() {
+        IO io = new IO();
+        io.setDeduplication(true);
+        DedupTable dedup = io.getDedupTable();
+        // every block starts out empty, so all of them share one array
+        boolean emptyShared = dedup.getUniqueBlocks() == 1 
+                && dedup.getReferences() == IO.LDISK_SIZE;
+        
+        byte[] block = Utils.getClearBytes(IO.BLOCK_SIZE);
+        Arrays.fill(block, (byte) 'd');
+        for (int i=10; i < 15; i++) {
+            io.writeBlock(i, block);
+        }
+        boolean sharedOnce = dedup.getUniqueBlocks() == 2;
+        
+        // rewriting one copy leaves the others alone
+        byte[] other = block.clone();
+        other[0] = 'e';
+        io.writeBlock(12, other);
+        boolean copiesIntact = Arrays.equals(block, io.readBlock(11))
+                && Arrays.equals(other, io.readBlock(12)) && dedup.getUniqueBlocks() == 3;
+        // and a read hands out a copy, not the shared array
+        io.readBlock(13)[0] = 'f';
+        copiesIntact &= Arrays.equals(block, io.readBlock(14));
+        check("dedup shares identical blocks", emptyShared && sharedOnce && copiesIntact);
+        
+        FileSystem fs = new FileSystem();
+        fs.setDeduplication(true);
+        for (int i=0; i < 4; i++) {
+            createFile(fs, "f" + i, 'z', 130);
+        }
+        int oftIndex = fs.open("f2".getBytes());
+        fs.lseek(oftIndex, 64);
+        fs.writeFile(oftIndex, (byte) 'q', 1);
+        fs.close(oftIndex);
+        String changed = repeat('z', 64) + "q" + repeat('z', 65);
+        boolean filesOk = fs.dedupReport() != null && changed.equals(contents(fs, "f2"))
+                && repeat('z', 130).equals(contents(fs, "f3"));
+        fs.setDeduplication(false);
+        check("dedup file system", filesOk && fs.dedupReport() == null
+                && repeat('z', 130).equals(contents(fs, "f0")));
+    }
+    
+    public void testSparseFiles() {
+        runScript("sparse_file_test.txt");
+        
+        FileSystem fs = new FileSystem();
+        fs.create("s".getBytes());
+        int usedBefore = fs.statfs().getUsedBlocks();
+        int oftIndex = fs.open("s".getBytes());
+        // seeking and reading past the end allocate nothing
+        fs.lseek(oftIndex, 150);
+        boolean nothingRead = fs.readFile(oftIndex, 10).length == 0;
+        fs.lseek(oftIndex, 0);
+        fs.readFile(oftIndex, 100);
+        boolean noBlocks = fs.statfs().getUsedBlocks() == usedBefore;
+        
+        fs.lseek(oftIndex, 150);
+        fs.writeFile(oftIndex, (byte) 's', 1);
+        fs.close(oftIndex);
+        // only the block the byte landed in exists, the rest reads back empty
+        oftIndex = fs.open("s".getBytes());
+        byte[] hole = fs.readFile(oftIndex, FileSystem.MAX_FILESIZE);
+        fs.close(oftIndex);
+        boolean holeEmpty = hole.length == 151 && hole[150] == 's';
+        for (int i=0; i < 150; i++) {
+            holeEmpty &= hole[i] == IO.EMPTY_BYTE;
+        }
+        check("sparse files", nothingRead && noBlocks && holeEmpty 
+                && fs.statfs().getUsedBlocks() == usedBefore + 1);
+    }
+    
+    public void testDelayedAllocation() {
+        FileSystem fs = new FileSystem();
+        fs.create("a".getBytes());
+        fs.create("b".getBytes());
+        int a = fs.open("a".getBytes());
+        int b = fs.open("b".getBytes());
+        int usedBefore = fs.statfs().getUsedBlocks();
+        // interleaved writes, block by block
+        for (int k=0; k < FileSystem.MAX_FILE_BLOCKS; k++) {
+            fs.writeFile(a, (byte) 'a', IO.BLOCK_SIZE);
+            fs.writeFile(b, (byte) 'b', IO.BLOCK_SIZE);
+        }
+        // written blocks are only reserved while the files are open
+        StatFs open = fs.statfs();
+        boolean reserved = open.getReservedBlocks() == 2 * FileSystem.MAX_FILE_BLOCKS;
+        fs.close(a);
+        fs.close(b);
+        StatFs closed = fs.statfs();
+        FragmentationReport report = fs.fragmentation();
+        check("delayed allocation", reserved && closed.getReservedBlocks() == 0
+                && closed.getUsedBlocks() == usedBefore + 2 * FileSystem.MAX_FILE_BLOCKS
+                && report.getFragmentedFiles() == 0
+                && repeat('a', FileSystem.MAX_FILESIZE).equals(contents(fs, "a"))
+                && repeat('b', FileSystem.MAX_FILESIZE).equals(contents(fs, "b")));
+        
+        // one file open twice, both handles reserve the same block and the
+        // last one closed wins, as it did when blocks were placed on write
+        fs = new FileSystem();
+        fs.create("f".getBytes());
+        int first = fs.open("f".getBytes());
+        int second = fs.open("f".getBytes());
+        usedBefore = fs.statfs().getUsedBlocks();
+        fs.writeFile(first, (byte) 'x', 40);
+        fs.writeFile(second, (byte) 'y', 30);
+        boolean shared = fs.statfs().getReservedBlocks() == 1;
+        fs.close(first);
+        fs.close(second);
+        shared &= repeat('y', 30).equals(contents(fs, "f"))
+                && fs.statfs().getUsedBlocks() == usedBefore + 1;
+        
+        // a block parked by one handle is what the other one reads
+        fs.create("g".getBytes());
+        first = fs.open("g".getBytes());
+        fs.writeFile(first, (byte) 'x', 100);
+        second = fs.open("g".getBytes());
+        byte[] seen = new byte[IO.BLOCK_SIZE];
+        shared &= fs.readFile(second, seen, 0, seen.length) == IO.BLOCK_SIZE
+                && repeat('x', IO.BLOCK_SIZE).equals(new String(seen));
+        fs.close(second);
+        fs.close(first);
+        shared &= repeat('x', 100).equals(contents(fs, "g"))
+                && fs.statfs().getUsedBlocks() == usedBefore + 3;
+        fs.destroy("g".getBytes());
+        fs.destroy("f".getBytes());
+        shared &= fs.statfs().getUsedBlocks() == usedBefore;
+        check("delayed allocation on two handles", shared);
+    }
+    
+    public void testStatfs() {
+        runScript("statfs_test.txt");
+        
+        // the running counters have to agree with a volume rebuilt from
+        // scratch out of the same blocks
+        FileSystem fs = new FileSystem();
+        Random random = new Random(32);
+        boolean agree = true;
+        try {
+            for (int round=0; round < 200; round++) {
+                String name = "f" + random.nextInt(12);
+                if (random.nextInt(3) == 0) {
+                    fs.destroy(name.getBytes());
+                }
+                else {
+                    fs.destroy(name.getBytes());
+                    createFile(fs, name, 'r', random.nextInt(FileSystem.MAX_FILESIZE + 1));
+                }
+                if (round % 20 == 0) {
+                    String image = tempFile(".txt");
+                    fs.save(image);
+                    FileSystem rebuilt = new FileSystem();
+                    rebuilt.init(new String[] { "in", image });
+                    agree &= fs.statfs().toString().equals(rebuilt.statfs().toString());
+                    agree &= fs.statfs().getFreeBlocks() == fs.fragmentation().getFreeBlocks();
+                    String listing = fs.ls().trim();
+                    int files = listing.isEmpty() ? 0 : listing.split(" +").length;
+                    agree &= fs.statfs().getFreeDescriptors() + files == IO.NUMB_DESCRIPTORS;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            agree = false;
+        }
+        check("statfs counters", agree);
+    }
+    
+    public void testStoredBitmap() {
+        FileSystem fs = new FileSystem();
+        createFile(fs, "a", 'a', 100);
+        createFile(fs, "b", 'b', 192);
+        fs.destroy("a".getBytes());
+        createFile(fs, "c", 'c', 10);
+        Snapshot snapshot = fs.snapshot();
+        
+        // block 0 carries the same bits the volume has in memory
+        byte[] blockZero = snapshot.getIO().readBlock(0);
+        BitMap stored = new BitMap();
+        stored.loadFrom(blockZero);
+        boolean sameBits = BitMap.isStored(blockZero);
+        for (int i=0; i < IO.LDISK_SIZE; i++) {
+            sameBits &= stored.isOne(i) == snapshot.getBitMap().isOne(i);
+        }
+        check("bitmap stored in block 0", sameBits);
+        
+        // an image without the bitmap gets it rebuilt from the descriptors
+        try {
+            IO legacy = new IO();
+            for (int i=0; i < IO.LDISK_SIZE; i++) {
+                legacy.writeBlock(i, snapshot.getIO().readBlock(i));
+            }
+            Arrays.fill(blockZero, IO.DIRECTORY_DESCRIPTOR_SIZE, IO.BLOCK_ZERO_SIZE, IO.EMPTY_BYTE);
+            legacy.writeBlock(0, blockZero);
+            String image = tempFile(".txt");
+            PrintWriter out = new PrintWriter(image);
+            out.write(FileSystem.serializeLdisk(legacy));
+            out.close();
+            
+            FileSystem rebuilt = new FileSystem();
+            rebuilt.init(new String[] { "in", image });
+            createFile(rebuilt, "d", 'd', 192);
+            check("bitmap rebuilt without block 0", 
+                    rebuilt.statfs().getUsedBlocks() == fs.statfs().getUsedBlocks() + 3
+                    && repeat('b', 192).equals(contents(rebuilt, "b"))
+                    && repeat('c', 10).equals(contents(rebuilt, "c"))
+                    && repeat('d', 192).equals(contents(rebuilt, "d")));
+        } catch (IOException e) {
+            e.printStackTrace();
+            check("bitmap rebuilt without block 0", false);
+        }
+    }
+    
+    public void testLazyMount() {
+        try {
+            FileSystem fs = new FileSystem();
+            createFile(fs, "a", 'a', 192);
+            createFile(fs, "b", 'b', 100);
+            String image = tempFile(".img");
+            fs.saveCompressed(image, 6);
+            
+            // blocks come in chunk by chunk, writes before that win
+            IO lazy = new IO(new PagedImage(image));
+            byte[] block = Utils.getClearBytes(IO.BLOCK_SIZE);
+            block[0] = 42;
+            lazy.writeBlock(IO.LDISK_SIZE - 1, block);
+            IO eager = fs.snapshot().getIO();
+            boolean sameBlocks = true;
+            for (int i=0; i < IO.LDISK_SIZE - 1; i++) {
+                sameBlocks &= Arrays.equals(eager.readBlock(i), lazy.readBlock(i));
+            }
+            sameBlocks &= Arrays.equals(block, lazy.readBlock(IO.LDISK_SIZE - 1));
+            check("paged image blocks", sameBlocks);
+            
+            FileSystem mounted = new FileSystem();
+            mounted.init(new String[] { "in", image });
+            createFile(mounted, "c", 'c', 150);
+            check("lazy mount", repeat('a', 192).equals(contents(mounted, "a"))
+                    && repeat('b', 100).equals(contents(mounted, "b"))
+                    && repeat('c', 150).equals(contents(mounted, "c")));
+        } catch (IOException e) {
+            e.printStackTrace();
+            check("lazy mount", false);
+        }
+    }
+    
+    public void testFlatStore() {
+        IO io = new IO();
+        byte[] block = Utils.getClearBytes(IO.BLOCK_SIZE);
+        boolean empty = Arrays.equals(block, io.readBlock(0)) 
+                && Arrays.equals(block, io.readBlock(IO.LDISK_SIZE - 1));
+        
+        // copied in on write and out on read, callers never alias the store
+        block[5] = 9;
+        io.writeBlock(20, block);
+        block[5] = 10;
+        byte[] read = io.readBlock(20);
+        read[6] = 11;
+        boolean copied = io.readBlock(20)[5] == 9 && io.readBlock(20)[6] == IO.EMPTY_BYTE;
+        // neighbours are untouched
+        copied &= io.readBlock(19)[63] == IO.EMPTY_BYTE && io.readBlock(21)[0] == IO.EMPTY_BYTE;
+        check("flat store copy in/out", empty && copied);
+    }
+    
+    public void testFieldCodec() {
+        Random random = new Random(36);
+        byte[] arr = new byte[IO.BLOCK_SIZE];
+        boolean same = true;
+        for (int round=0; round < 1000; round++) {
+            int val = random.nextInt();
+            long longVal = random.nextLong();
+            // unaligned offsets too
+            int loc = random.nextInt(IO.BLOCK_SIZE - FieldCodec.LONG_SIZE + 1);
+            Utils.intPack(arr, val, loc);
+            for (int i=0; i < FieldCodec.INT_SIZE; i++) {
+                // big endian, byte for byte what the old shift loops wrote
+                same &= arr[loc + i] == (byte) (val >>> (24 - 8 * i));
+            }
+            same &= Utils.intUnpack(arr, loc) == val && FieldCodec.getInt(arr, loc) == val;
+            FieldCodec.putLong(arr, loc, longVal);
+            for (int i=0; i < FieldCodec.LONG_SIZE; i++) {
+                same &= arr[loc + i] == (byte) (longVal >>> (56 - 8 * i));
+            }
+            same &= FieldCodec.getLong(arr, loc) == longVal;
+        }
+        check("field codec", same);
+    }
+    
+    public void testDurability() {
+        new File("durability_test.vol").delete();
+        runScript("durability_test.txt");
+        new File("durability_test.vol").delete();
+        
+        try {
+            // none: only sync (or detach) writes anything out
+            String volume = newVolume();
+            FileSystem fs = new FileSystem();
+            fs.attachVolume(volume, DurabilityMode.NONE);
+            createFile(fs, "a", 'n', 70);
+            boolean none = onVolume(volume, "a") == null;
+            fs.sync();
+            none &= repeat('n', 70).equals(onVolume(volume, "a"));
+            fs.detachVolume();
+            
+            volume = newVolume();
+            fs = new FileSystem();
+            fs.attachVolume(volume, DurabilityMode.WRITE_THROUGH);
+            createFile(fs, "a", 't', 70);
+            boolean through = repeat('t', 70).equals(onVolume(volume, "a"));
+            fs.detachVolume();
+            
+            // close: an open file reaches the volume once it is closed
+            volume = newVolume();
+            fs = new FileSystem();
+            fs.attachVolume(volume, DurabilityMode.FSYNC_ON_CLOSE);
+            fs.create("a".getBytes());
+            int oftIndex = fs.open("a".getBytes());
+            fs.writeFile(oftIndex, (byte) 'c', 70);
+            boolean onClose = onVolume(volume, "a") == null;
+            fs.close(oftIndex);
+            onClose &= repeat('c', 70).equals(onVolume(volume, "a"));
+            fs.detachVolume();
+            
+            // back: the flusher gets there on its own
+            volume = newVolume();
+            fs = new FileSystem();
+            fs.attachVolume(volume, DurabilityMode.WRITE_BACK);
+            fs.setWriteBack(10, 1000);
+            createFile(fs, "a", 'b', 70);
+            boolean back = false;
+            for (int i=0; i < 500 && !back; i++) {
+                Thread.sleep(10);
+                back = repeat('b', 70).equals(onVolume(volume, "a"));
+            }
+            fs.detachVolume();
+            check("durability modes", none && through && onClose && back);
+        } catch (Exception e) {
+            e.printStackTrace();
+            check("durability modes", false);
+        }
+    }
+    
+    public void testImportExport() {
+        new File("import_export_test.out").delete();
+        runScript("import_export_test.txt");
+        check("export matches the imported host file", 
+                readBytes(TESTS_DIR + "import_test.data").equals(readBytes("import_export_test.out")));
+        new File("import_export_test.out").delete();
+        
+        try {
+            Random random = new Random(38);
+            byte[] big = new byte[FileSystem.MAX_FILESIZE + 50];
+            random.nextBytes(big);
+            byte[] small = Arrays.copyOf(big, 5);
+            String host = tempFile(".data");
+            String out = tempFile(".data");
+            FileSystem fs = new FileSystem();
+            
+            // past MAX_FILESIZE is cut off, same as writeFile
+            Files.write(Paths.get(host), big);
+            boolean imported = fs.importFile(host, "big".getBytes()) == FileSystem.MAX_FILESIZE;
+            imported &= fs.importFile(host, "big".getBytes()) == FileSystem.COMMAND_FAIL;
+            imported &= fs.exportFile("big".getBytes(), out) == FileSystem.MAX_FILESIZE;
+            imported &= Arrays.equals(Arrays.copyOf(big, FileSystem.MAX_FILESIZE), 
+                    Files.readAllBytes(Paths.get(out)));
+            
+            // small enough to be stored inline
+            Files.write(Paths.get(host), small);
+            imported &= fs.importFile(host, "s".getBytes()) == small.length;
+            imported &= fs.exportFile("s".getBytes(), out) == small.length;
+            imported &= Arrays.equals(small, Files.readAllBytes(Paths.get(out)));
+            
+            // an open file is flushed before it goes out
+            fs.create("o".getBytes());
+            int oftIndex = fs.open("o".getBytes());
+            fs.writeFile(oftIndex, (byte) 'o', 100);
+            imported &= fs.exportFile("o".getBytes(), out) == 100;
+            imported &= repeat('o', 100).equals(readBytes(out));
+            fs.close(oftIndex);
+            imported &= fs.exportFile("zz".getBytes(), out) == FileSystem.COMMAND_FAIL;
+            check("import and export", imported);
+        } catch (IOException e) {
+            e.printStackTrace();
+            check("import and export", false);
+        }
+    }
+    
+    public void testChannelAndStreams() {
+        FileSystem fs = new FileSystem();
+        byte[] data = new byte[150];
+        new Random(39).nextBytes(data);
+        try {
+            fs.create("ch".getBytes());
+            FileHandleChannel channel = new FileHandleChannel(fs, fs.open("ch".getBytes()));
+            int oftIndex = channel.getOFTIndex();
+            // heap and direct buffers take different paths
+            boolean passed = channel.write(ByteBuffer.wrap(data, 0, 100)) == 100;
+            ByteBuffer direct = ByteBuffer.allocateDirect(50);
+            direct.put(data, 100, 50).flip();
+            passed &= channel.write(direct) == 50 && channel.size() == 150 
+                    && channel.position() == 150;
+            
+            byte[] back = new byte[150];
+            channel.position(0);
+            passed &= channel.read(ByteBuffer.wrap(back, 0, 70)) == 70;
+            direct = ByteBuffer.allocateDirect(100);
+            passed &= channel.read(direct) == 80 && channel.read(direct) == -1;
+            direct.flip();
+            direct.get(back, 70, 80);
+            passed &= Arrays.equals(data, back);
+            
+            // writes stop at MAX_FILESIZE
+            ByteBuffer rest = ByteBuffer.wrap(data);
+            passed &= channel.write(rest) == FileSystem.MAX_FILESIZE - 150 
+                    && rest.remaining() == 150 - (FileSystem.MAX_FILESIZE - 150);
+            passed &= throwsIOException(() -> channel.position(FileSystem.MAX_FILESIZE + 1));
+            passed &= throwsIOException(() -> channel.truncate(10));
+            passed &= channel.truncate(FileSystem.MAX_FILESIZE) == channel;
+            channel.close();
+            passed &= !channel.isOpen() && !fs.isOpen(oftIndex);
+            passed &= throwsIOException(() -> channel.size());
+            check("file handle channel", passed);
+        } catch (IOException e) {
+            e.printStackTrace();
+            check("file handle channel", false);
+        }
+        
+        try {
+            fs.create("st".getBytes());
+            FileHandleOutputStream out = new FileHandleOutputStream(fs, fs.open("st".getBytes()));
+            out.write(data, 0, 149);
+            out.write(data[149]);
+            // the file is full before all of data fits
+            boolean passed = throwsIOException(() -> out.write(data));
+            out.close();
+            passed &= throwsIOException(() -> out.write(1));
+            
+            int oftIndex = fs.open("st".getBytes());
+            FileHandleInputStream in = new FileHandleInputStream(fs, oftIndex);
+            byte[] back = new byte[150];
+            passed &= in.available() == FileSystem.MAX_FILESIZE;
+            passed &= in.read(back, 0, 149) == 149 && in.read() == (data[149] & 0xFF);
+            passed &= Arrays.equals(Arrays.copyOf(data, 149), Arrays.copyOf(back, 149));
+            passed &= in.skip(1000) == FileSystem.MAX_FILESIZE - 150;
+            passed &= in.available() == 0 && in.read() == -1 && in.read(back) == -1;
+            in.close();
+            passed &= !fs.isOpen(oftIndex) && throwsIOException(() -> in.read());
+            check("file handle streams", passed);
+        } catch (IOException e) {
+            e.printStackTrace();
+            check("file handle streams", false);
+        }
+    }
+    
+    public void testBatches() {
+        FileSystem fs = new FileSystem();
+        createFile(fs, "old", 'o', 10);
+        Batch batch = new Batch();
+        batch.create("a".getBytes());
+        batch.write("a".getBytes(), 0, repeat('a', 100).getBytes());
+        batch.destroy("old".getBytes());
+        batch.create("a".getBytes());
+        // the second create of a fails, so nothing at all happens
+        boolean atomic = fs.applyBatch(batch) == FileSystem.COMMAND_FAIL 
+                && batch.getFailedOp() == 3;
+        atomic &= contents(fs, "a") == null && repeat('o', 10).equals(contents(fs, "old"));
+        
+        batch = new Batch();
+        batch.create("a".getBytes());
+        batch.write("a".getBytes(), 0, repeat('a', 100).getBytes());
+        batch.write("a".getBytes(), 50, repeat('b', 10).getBytes());
+        batch.destroy("old".getBytes());
+        atomic &= fs.applyBatch(batch) == FileSystem.COMMAND_SUCCEED && batch.getFailedOp() == -1;
+        atomic &= (repeat('a', 50) + repeat('b', 10) + repeat('a', 40)).equals(contents(fs, "a"))
+                && contents(fs, "old") == null;
+        check("batches are all or nothing", atomic);
+        
+        // a failed lookup leaves the directory cursor past its last
+        // block, applyBatch used to buffer that block and throw
+        fs = new FileSystem();
+        fs.create("a".getBytes());
+        fs.snapshot();
+        boolean cursor = fs.open("zz".getBytes()) == FileSystem.COMMAND_FAIL;
+        batch = new Batch();
+        batch.create("b".getBytes());
+        try {
+            cursor &= fs.applyBatch(batch) == FileSystem.COMMAND_SUCCEED;
+            cursor &= fs.ls().trim().equals("a b");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            cursor = false;
+        }
+        check("batch after a failed lookup", cursor);
+    }
+    
+    public void testOpenFileLength() {
+        FileSystem fs = new FileSystem();
+        fs.create("a".getBytes());
+        int oftIndex = fs.open("a".getBytes());
+        fs.writeFile(oftIndex, (byte) 'a', 1);
+        // descriptor 1 lives in block 1
+        BlockTrace trace = new BlockTrace();
+        fs.setTrace(trace);
+        for (int i=0; i < 60; i++) {
+            fs.writeFile(oftIndex, (byte) 'a', 1);
+        }
+        boolean passed = fs.getFileLength(oftIndex) == 61 && blockWrites(trace, 1) == 0;
+        passed &= fs.listDirectory(0, 1).getEntries().get(0).getFileLength() == 61;
+        fs.close(oftIndex);
+        passed &= blockWrites(trace, 1) > 0 && repeat('a', 61).equals(contents(fs, "a"));
+        
+        // nothing changed, nothing written
+        trace = new BlockTrace();
+        fs.setTrace(trace);
+        fs.close(fs.open("a".getBytes()));
+        passed &= blockWrites(trace, 1) == 0;
+        
+        // a snapshot flushes the length of files still open
+        oftIndex = fs.open("a".getBytes());
+        fs.lseek(oftIndex, 61);
+        fs.writeFile(oftIndex, (byte) 'b', 9);
+        FileSystem copy = new FileSystem(fs.snapshot());
+        passed &= (repeat('a', 61) + repeat('b', 9)).equals(contents(copy, "a"));
+        fs.close(oftIndex);
+        check("open file lengths", passed);
+    }
+    
+    /**
+     * writes a trace recorded that touched the block
+     */
+    private static int blockWrites(BlockTrace trace, int block) {
+        int writes = 0;
+        for (IORequest request : trace.toRequests(new Random(0), 1)) {
+            if (request.isWrite() && request.getBlock() <= block && block < request.getEnd()) {
+                writes++;
+            }
+        }
+        return writes;
+    }
+    
+    public void testChecksums() {
+        try {
+            FileSystem fs = new FileSystem();
+            createFile(fs, "a", 'q', 100);
+            String text = tempFile(".txt");
+            String image = tempFile(".img");
+            String volume = newVolume();
+            fs.save(text);
+            fs.saveCompressed(image, 0);
+            fs.attachVolume(volume, DurabilityMode.WRITE_THROUGH);
+            fs.detachVolume();
+            
+            // untouched images load
+            boolean passed = repeat('q', 100).equals(contents(loaded(text), "a"))
+                    && repeat('q', 100).equals(contents(loaded(image), "a"))
+                    && repeat('q', 100).equals(contents(loaded(volume), "a"));
+            
+            // one data byte changed in each, 'q' is 113 in a text image
+            String textImage = readBytes(text);
+            Files.write(Paths.get(text), 
+                    textImage.replaceFirst("113\\*\\*113", "113**112").getBytes());
+            flipFirst(image, (byte) 'q');
+            flipFirst(volume, (byte) 'q');
+            passed &= loaded(text) == null && loaded(image) == null && loaded(volume) == null;
+            
+            // a lazy mount finds it when the chunk is paged in
+            PagedImage pager = new PagedImage(image);
+            boolean paged = false;
+            for (int c=0; c < ImageCodec.NUMB_CHUNKS && !paged; c++) {
+                try {
+                    pager.loadChunk(c);
+                } catch (IOException e) {
+                    paged = true;
+                }
+            }
+            pager.close();
+            check("corrupt blocks rejected", passed && paged);
+        } catch (IOException e) {
+            e.printStackTrace();
+            check("corrupt blocks rejected", false);
+        }
+    }
+    
+    /**
+     * a file system restored from the image, read in full, null if the
+     * image is rejected
+     */
+    private static FileSystem loaded(String image) {
+        FileSystem fs = new FileSystem();
+        try {
+            fs.init(new String[] { "in", image });
+            // a compressed image is paged in lazily
+            fs.save(tempFile(".txt"));
+            return fs;
+        } catch (IOException e) {
+            return null;
+        } catch (UncheckedIOException e) {
+            return null;
+        }
+    }
+    
+    private static void flipFirst(String filename, byte target) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(filename));
+        for (int i=0; i < bytes.length; i++) {
+            if (bytes[i] == target) {
+                bytes[i] ^= 1;
+                break;
+            }
+        }
+        Files.write(Paths.get(filename), bytes);
+    }
+    
+    public void testAllocationPolicies() {
+        runScript("allocation_policy_test.txt");
+        
+        // free runs: 10-11, 13-19, 40-42
+        BitMap bitmap = new BitMap();
+        for (int i=BitMap.FIRST_DATA_BLOCK; i < IO.LDISK_SIZE; i++) {
+            bitmap.setOne(i);
+        }
+        int[] free = { 10, 11, 13, 14, 15, 16, 17, 18, 19, 40, 41, 42 };
+        for (int index : free) {
+            bitmap.setZero(index);
+        }
+        AllocationPolicy first = AllocationPolicy.fromName("first");
+        AllocationPolicy best = AllocationPolicy.fromName("best");
+        AllocationPolicy near = AllocationPolicy.fromName("near");
+        boolean picked = first.allocateRun(bitmap, 2, -1) == 10 
+                && first.allocateRun(bitmap, 3, 41) == 13
+                && first.allocateRun(bitmap, 8, -1) == BitMap.BITMAP_ERR;
+        picked &= best.allocateRun(bitmap, 2, -1) == 10 
+                && best.allocateRun(bitmap, 3, -1) == 40
+                && best.allocateRun(bitmap, 4, -1) == 13;
+        picked &= near.allocateRun(bitmap, 2, 41) == 41 
+                && near.allocateRun(bitmap, 2, 30) == 40
+                && near.allocateRun(bitmap, 2, 16) == 16
+                && near.allocateRun(bitmap, 2, -1) == 10;
+        
+        // next fit moves on from where it left off, then wraps around
+        AllocationPolicy next = AllocationPolicy.fromName("next");
+        int[] expected = { 10, 13, 15, 40, 13 };
+        int[] counts = { 2, 2, 3, 3, 3 };
+        for (int k=0; k < expected.length; k++) {
+            picked &= next.allocateRun(bitmap, counts[k], -1) == expected[k];
+        }
+        picked &= AllocationPolicy.fromName("worst") == null;
+        check("allocation policies", picked);
+        
+        // a hole in front of a file, first-fit grows the file into it
+        boolean[] oneExtent = new boolean[2];
+        String[] policies = { "first", "near" };
+        for (int k=0; k < policies.length; k++) {
+            FileSystem fs = new FileSystem();
+            fs.setAllocationPolicy(AllocationPolicy.fromName(policies[k]));
+            createFile(fs, "x", 'x', IO.BLOCK_SIZE);
+            createFile(fs, "a", 'a', IO.BLOCK_SIZE);
+            fs.destroy("x".getBytes());
+            int oftIndex = fs.open("a".getBytes());
+            fs.lseek(oftIndex, IO.BLOCK_SIZE);
+            fs.writeFile(oftIndex, (byte) 'a', IO.BLOCK_SIZE);
+            fs.close(oftIndex);
+            oneExtent[k] = fs.fragmentation().getFragmentedFiles() == 0
+                    && repeat('a', 2 * IO.BLOCK_SIZE).equals(contents(fs, "a"));
+        }
+        check("near keeps files in one extent", !oneExtent[0] && oneExtent[1]);
+    }
+    
+    public void testDefragment() {
+        runScript("defragment_test.txt");
+        
+        for (int run=0; run < 2; run++) {
+            boolean background = (run == 1);
+            FileSystem fs = new FileSystem();
+            Map<String, String> expected = fragmentedFiles(fs, new Random(44 + run));
+            int before = fs.fragmentation().getFragmentedFiles();
+            
+            // an open file is left where it is
+            int oftIndex = fs.open("f0".getBytes());
+            boolean skipsOpen = fs.defragment(1000) > 0 
+                    && fs.fragmentation().getFragmentedFiles() <= 1;
+            fs.close(oftIndex);
+            
+            if (background) {
+                fs.startDefragmenter(1000);
+                for (int i=0; i < 500 && fs.isDefragmenting(); i++) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            else {
+                fs.defragment(1000);
+            }
+            FragmentationReport after = fs.fragmentation();
+            boolean passed = before > 0 && !fs.isDefragmenting() 
+                    && after.getFragmentedFiles() == 0;
+            for (Map.Entry<String, String> file : expected.entrySet()) {
+                passed &= file.getValue().equals(contents(fs, file.getKey()));
+            }
+            passed &= fs.defragment(1000) == 0;
+            if (background) {
+                check("background defragmenter", passed);
+            }
+            else {
+                check("defragment", passed && skipsOpen);
+            }
+        }
+    }
+    
+    /**
+     * files grown a block at a time in turn, with some destroyed in
+     * between, returns what each one holds
+     */
+    private static Map<String, String> fragmentedFiles(FileSystem fs, Random random) {
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int round=0; round < FileSystem.MAX_FILE_BLOCKS; round++) {
+            for (int f=0; f < 12; f++) {
+                String name = "f" + f;
+                if (round == 0) {
+                    fs.create(name.getBytes());
+                    expected.put(name, "");
+                }
+                if (!expected.containsKey(name)) {
+                    continue;
+                }
+                char character = (char) ('a' + random.nextInt(26));
+                int oftIndex = fs.open(name.getBytes());
+                fs.lseek(oftIndex, expected.get(name).length());
+                fs.writeFile(oftIndex, (byte) character, IO.BLOCK_SIZE);
+                fs.close(oftIndex);
+                expected.put(name, expected.get(name) + repeat(character, IO.BLOCK_SIZE));
+            }
+            String victim = "f" + (1 + random.nextInt(11));
+            if (round == 1 && expected.remove(victim) != null) {
+                fs.destroy(victim.getBytes());
+            }
+        }
+        return expected;
+    }
+    
+    public void testBlockRuns() {
+        Random random = new Random(45);
+        int start = 20;
+        int count = 5;
+        byte[] run = new byte[count * IO.BLOCK_SIZE];
+        boolean passed = true;
+        // flat store, packed blocks, interned blocks, store shared with a snapshot
+        for (int mode=0; mode < 4; mode++) {
+            IO io = new IO();
+            io.setBlockCompression(mode == 1);
+            io.setDeduplication(mode == 2);
+            IO snapshot = (mode == 3) ? io.snapshot() : null;
+            random.nextBytes(run);
+            // a repeated block for dedup and compression to work on
+            Arrays.fill(run, 0, 2 * IO.BLOCK_SIZE, (byte) 7);
+            io.clearDirty();
+            io.writeBlocks(start, count, run);
+            
+            byte[] back = new byte[run.length];
+            io.readBlocks(start, count, back);
+            passed &= Arrays.equals(run, back) && io.getDirtyCount() == count;
+            for (int k=0; k < count; k++) {
+                byte[] block = Arrays.copyOfRange(run, k * IO.BLOCK_SIZE, (k + 1) * IO.BLOCK_SIZE);
+                passed &= Arrays.equals(block, io.readBlock(start + k)) && io.isDirty(start + k)
+                        && io.getChecksum(start + k) == BlockChecksums.compute(block);
+            }
+            if (snapshot != null) {
+                passed &= snapshot.readBlock(start)[0] == IO.EMPTY_BYTE;
+            }
+        }
+        check("readBlocks/writeBlocks", passed);
+        
+        try {
+            String volume = newVolume();
+            VolumeFile file = new VolumeFile(volume);
+            IO io = new IO();
+            file.writeAll(io);
+            io.clearDirty();
+            random.nextBytes(run);
+            file.writeBlocks(start, count, run);
+            byte[] back = new byte[run.length];
+            file.readBlocks(start, count, back);
+            boolean onVolume = Arrays.equals(run, back);
+            
+            // a dirty run goes out together with its checksums
+            random.nextBytes(run);
+            io.writeBlocks(start, count, run);
+            onVolume &= file.writeDirty(io) == count && io.getDirtyCount() == 0;
+            byte[][] ldisk = file.readAll();
+            for (int k=0; k < count; k++) {
+                onVolume &= Arrays.equals(io.readBlock(start + k), ldisk[start + k]);
+            }
+            file.close();
+            check("volume file block runs", onVolume);
+        } catch (IOException e) {
+            e.printStackTrace();
+            check("volume file block runs", false);
+        }
+    }
+    
+    public void testSchedulers() {
+        String[] names = { "fifo", "sstf", "scan", "deadline" };
+        boolean named = IOScheduler.fromName("cfq") == null;
+        for (String name : names) {
+            named &= IOScheduler.fromName(name).getName().equals(name);
+        }
+        check("scheduler names", named);
+        
+        List<IORequest> pending = new ArrayList<IORequest>();
+        pending.add(new IORequest(40, 1, false, 0));
+        pending.add(new IORequest(5, 1, false, 0));
+        pending.add(new IORequest(20, 1, true, 0));
+        IOScheduler scan = IOScheduler.fromName("scan");
+        boolean picked = IOScheduler.fromName("fifo").next(pending, 18, 0) == 0
+                && IOScheduler.fromName("sstf").next(pending, 18, 0) == 2
+                && scan.next(pending, 18, 0) == 2
+                // nothing left above the head, scan turns around
+                && scan.next(pending, 50, 0) == 0 && scan.next(pending, 30, 0) == 2;
+        // once the reads at 40 and 5 expire they go ahead of the write
+        long late = DeadlineScheduler.READ_EXPIRE_NS + 1;
+        IOScheduler deadline = IOScheduler.fromName("deadline");
+        picked &= deadline.next(pending, 18, 0) == 2 && deadline.next(pending, 18, late) != 2;
+        check("scheduler picks", picked);
+        
+        boolean replayed = true;
+        for (String name : names) {
+            int[] dispatches = new int[2];
+            for (int merge=0; merge < 2; merge++) {
+                List<IORequest> requests = new ArrayList<IORequest>();
+                // one run of neighbouring reads all at once, then a random mix
+                for (int i=0; i < IOQueue.MAX_MERGE_BLOCKS; i++) {
+                    requests.add(new IORequest(BitMap.FIRST_DATA_BLOCK + i, 1, false, 0));
+                }
+                Random random = new Random(46);
+                long arrival = 0;
+                for (int i=0; i < 200; i++) {
+                    arrival += random.nextInt(2000000);
+                    requests.add(new IORequest(random.nextInt(IO.LDISK_SIZE - 1), 1, 
+                            random.nextBoolean(), arrival));
+                }
+                IOQueue queue = new IOQueue(new SimulatedDisk(new DiskModel()), 
+                        IOScheduler.fromName(name));
+                queue.setMerging(merge == 1);
+                LatencyStats stats = queue.replay(requests);
+                replayed &= stats.getRequests() == requests.size();
+                for (IORequest request : requests) {
+                    replayed &= request.getCompletion() > request.getArrival();
+                }
+                dispatches[merge] = stats.getDispatches();
+            }
+            replayed &= dispatches[0] == 216 && dispatches[1] < 216 - 14;
+        }
+        check("io queue replay", replayed);
+    }
+    
+    public void testInlineFiles() {
+        FileSystem fs = new FileSystem();
+        createFile(fs, "e", 'e', 0);
+        // the directory has its block by now
+        int freeBlocks = fs.statfs().getFreeBlocks();
+        createFile(fs, "s", 's', FileSystem.INLINE_CAPACITY);
+        int descNumb = fs.listDirectory(0, 2).getEntries().get(1).getDescriptorNumb();
+        boolean passed = fs.isInline(descNumb) && !fs.hasDataBlocks(descNumb)
+                && fs.statfs().getFreeBlocks() == freeBlocks
+                && repeat('s', FileSystem.INLINE_CAPACITY).equals(contents(fs, "s"))
+                && "".equals(contents(fs, "e"));
+        byte[] inline = fs.readInline(descNumb);
+        passed &= inline != null && inline[0] == 's' && inline[FileSystem.INLINE_CAPACITY - 1] == 's';
+        
+        // survives a save and restore
+        try {
+            String image = tempFile(".txt");
+            fs.save(image);
+            FileSystem restored = new FileSystem();
+            restored.init(new String[] { "in", image });
+            passed &= restored.isInline(descNumb) 
+                    && repeat('s', FileSystem.INLINE_CAPACITY).equals(contents(restored, "s"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            passed = false;
+        }
+        
+        // one byte more and it moves out into a data block
+        int oftIndex = fs.open("s".getBytes());
+        fs.lseek(oftIndex, FileSystem.INLINE_CAPACITY);
+        fs.writeFile(oftIndex, (byte) 't', 1);
+        fs.close(oftIndex);
+        passed &= !fs.isInline(descNumb) && fs.hasDataBlocks(descNumb) 
+                && fs.readInline(descNumb) == null
+                && fs.statfs().getFreeBlocks() == freeBlocks - 1
+                && (repeat('s', FileSystem.INLINE_CAPACITY) + "t").equals(contents(fs, "s"));
+        fs.destroy("s".getBytes());
+        passed &= fs.statfs().getFreeBlocks() == freeBlocks;
+        check("inline files", passed);
+    }
+    
+    public void testReadViews() {
+        FileSystem fs = new FileSystem();
+        createFile(fs, "a", 'a', 100);
+        createFile(fs, "b", 'b', 10);
+        boolean passed = fs.openReadView("zz".getBytes()) == null;
+        try {
+            ReadView first = fs.openReadView("a".getBytes());
+            ReadView directory = fs.openDirectoryView();
+            
+            // the live volume moves on under the views
+            int oftIndex = fs.open("a".getBytes());
+            fs.writeFile(oftIndex, (byte) 'x', 150);
+            fs.close(oftIndex);
+            fs.destroy("b".getBytes());
+            createFile(fs, "c", 'c', 20);
+            ReadView second = fs.openReadView("a".getBytes());
+            
+            passed &= first.getLength() == 100 && second.getLength() == 150;
+            passed &= repeat('a', 100).equals(viewContents(first))
+                    && repeat('x', 150).equals(viewContents(second));
+            passed &= directory.isDirectory() && directory.ls().trim().equals("a b")
+                    && directory.listDirectory(0, 5).getEntries().size() == 2;
+            passed &= first.seek(50) == FileSystem.COMMAND_SUCCEED && first.getPosition() == 50;
+            
+            // reads do not wait for the live file system's lock
+            final ReadView held = first;
+            final String[] read = new String[1];
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        held.seek(0);
+                        read[0] = viewContents(held);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            synchronized (fs) {
+                reader.start();
+                reader.join(5000);
+            }
+            passed &= repeat('a', 100).equals(read[0]);
+            
+            first.close();
+            directory.close();
+            second.close();
+            passed &= throwsIOException(() -> first.read(new byte[1], 0, 1));
+            
+            // a view on a mounted snapshot leaves older snapshots alone
+            FileSystem volume = new FileSystem();
+            createFile(volume, "a", 'A', 100);
+            Snapshot older = volume.snapshot();
+            int rewrite = volume.open("a".getBytes());
+            volume.writeFile(rewrite, (byte) 'B', 100);
+            volume.close(rewrite);
+            Snapshot newer = volume.snapshot();
+            ReadView onMount = newer.mount().openReadView("a".getBytes());
+            passed &= repeat('B', 100).equals(viewContents(onMount));
+            onMount.close();
+            passed &= repeat('A', 100).equals(contents(older.mount(), "a"))
+                    && repeat('B', 100).equals(contents(newer.mount(), "a"))
+                    && repeat('B', 100).equals(contents(volume, "a"));
+            // with every version back, writes carry on as usual
+            createFile(fs, "d", 'd', 70);
+            passed &= fs.ls().trim().equals("a c d") 
+                    && repeat('x', 150).equals(contents(fs, "a"))
+                    && repeat('d', 70).equals(contents(fs, "d"));
+        } catch (Exception e) {
+            e.printStackTrace();
+            passed = false;
+        }
+        check("read views", passed);
+    }
+    
+    private static String viewContents(ReadView view) throws IOException {
+        byte[] buf = new byte[FileSystem.MAX_FILESIZE];
+        int length = view.read(buf, 0, buf.length);
+        return new String(buf, 0, length);
+    }
+    
+    public void testByteCommands() {
+        // scripts that leave no files behind on the host
+        String[] scripts = { "open_close_test.txt", "hard.txt",
+                "paged_listing_test.txt", "sparse_file_test.txt", "statfs_test.txt",
+                "allocation_policy_test.txt", "defragment_test.txt" };
+        PrintStream console = System.out;
+        boolean same = true;
+        try {
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            }));
+            for (String script : scripts) {
+                String inputFile = TESTS_DIR + script;
+                // replay lays the answers out the way runFile does
+                ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+                new Driver().replay(new FileInputStream(inputFile), replayed);
+                same &= readBytes(inputFile + ".OUTPUT").equals(replayed.toString());
+                
+                // and answers each line the way feedLine(String) does
+                Driver strings = new Driver();
+                Driver bytes = new Driver();
+                ResponseBuffer out = new ResponseBuffer();
+                for (String line : Files.readAllLines(Paths.get(inputFile))) {
+                    byte[] buf = ("  " + line + "  ").getBytes();
+                    bytes.feedLine(buf, 2, buf.length - 4, out);
+                    same &= strings.feedLine(line).equals(out.toString());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            same = false;
+        } finally {
+            System.setOut(console);
+        }
+        check("byte commands match the String path", same);
+        
+        // a bad number fails its own line and nothing else
+        String script = "in\ncr a\nop a\nrd 1 x\nwr 1 a 5\nsk x 0\nsk 1 99999999999\ndg x\n"
+                + "sk 1 0\nrd 1 5";
+        ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        try {
+            new Driver().replay(new ByteArrayInputStream(script.getBytes()), replayed);
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        check("replay survives bad numbers", replayed.toString().equals(
+                "\r\ndisk initialized\r\na created\r\na opened 1\r\nerror\r\n"
+                + "5 bytes written\r\nerror\r\nerror\r\nerror\r\nposition is 0\r\naaaaa\r\n"));
+        
+        CommandLine line = new CommandLine();
+        String[] numbers = { "0", "-0", "+7", "2147483647", "-2147483648", "2147483648", 
+                "-2147483649", "99999999999", "-", "+", "1x", "x" };
+        boolean parsed = true;
+        for (String number : numbers) {
+            byte[] buf = ("rd 1 " + number).getBytes();
+            line.parse(buf, 0, buf.length);
+            Integer expected = null;
+            Integer actual = null;
+            try {
+                expected = Integer.parseInt(number);
+            } catch (NumberFormatException e) {
+            }
+            try {
+                actual = line.parseInt(2);
+            } catch (NumberFormatException e) {
+            } catch (ArrayIndexOutOfBoundsException e) {
+            }
+            parsed &= (expected == null) ? actual == null : expected.equals(actual);
+        }
+        check("command line numbers", parsed);
+    }
+    
+    public void testBlockPool() {
+        BlockPool pool = new BlockPool(4);
+        byte[] store = pool.acquire();
+        boolean passed = store.length == BlockPool.STORE_BYTES && pool.getCreated() == 4
+                && pool.getIdleCount() == 3;
+        // a store comes back dirty and goes out clean
+        Arrays.fill(store, (byte) 1);
+        pool.release(store);
+        byte[] again = pool.acquire();
+        passed &= again == store && pool.getReused() == 1;
+        for (byte b : again) {
+            passed &= b == IO.EMPTY_BYTE;
+        }
+        // past maxIdle, or the wrong size, stores are dropped
+        pool.release(again);
+        pool.release(new byte[BlockPool.STORE_BYTES]);
+        pool.release(new byte[10]);
+        passed &= pool.getIdleCount() == 4;
+        pool.setMaxIdle(1);
+        passed &= pool.getIdleCount() == 1 && pool.getMaxIdle() == 1;
+        check("block pool", passed);
+        
+        // snapshots and read views outlive the volume that gave its store back
+        boolean survives = true;
+        try {
+            FileSystem fs = new FileSystem();
+            createFile(fs, "a", 'a', 100);
+            Snapshot snapshot = fs.snapshot();
+            ReadView view = fs.openReadView("a".getBytes());
+            fs.release();
+            for (int i=0; i < 2 * BlockPool.GROW_STORES; i++) {
+                FileSystem other = new FileSystem();
+                createFile(other, "a", 'z', 150);
+                other.release();
+            }
+            survives &= repeat('a', 100).equals(contents(snapshot.mount(), "a"))
+                    && repeat('a', 100).equals(viewContents(view));
+            view.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            survives = false;
+        }
+        check("snapshot outlives release", survives);
+        
+        // once warm, volumes coming and going (also through the driver's
+        // in) reuse stores instead of creating new ones
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        Driver driver = new Driver();
+        long created = 0;
+        for (int round=0; round < 2; round++) {
+            created = BlockPool.shared().getCreated();
+            for (int i=0; i < 100; i++) {
+                FileSystem fs = new FileSystem();
+                createFile(fs, "a", 'a', 100);
+                try {
+                    fs.release();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                driver.feedLine("in");
+                driver.feedLine("cr a");
+            }
+        }
+        System.setOut(console);
+        check("no new stores in steady state", BlockPool.shared().getCreated() == created);
+    }
+    
+    private interface IOAction {
+        void run() throws IOException;
+    }
+    
+    private static boolean throwsIOException(IOAction action) {
+        try {
+            action.run();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+    
+    /**
+     * path for a volume file that does not exist yet
+     */
+    private static String newVolume() throws IOException {
+        String volume = tempFile(".vol");
+        new File(volume).delete();
+        return volume;
+    }
+    
+    /**
+     * contents of a file as the volume file holds it right now
+     */
+    private static String onVolume(String volume, String name) throws IOException {
+        FileSystem copy = new FileSystem();
+        copy.init(new String[] { "in", volume });
+        return contents(copy, name);
+    }
+    
     public static void main(String[] args) {
         // FileSystem fileSystem = new FileSystem();
         Tests t = new Tests();
+        t.testPagedListing();
+        t.testSnapshots();
+        t.testCompressedImages();
+        t.testDeduplication();
+        t.testSparseFiles();
+        t.testDelayedAllocation();
+        t.testStatfs();
+        t.testStoredBitmap();
+        t.testLazyMount();
+        t.testFlatStore();
+        t.testFieldCodec();
+        t.testDurability();
+        t.testImportExport();
+        t.testChannelAndStreams();
+        t.testBatches();
+        t.testOpenFileLength();
+        t.testChecksums();
+        t.testAllocationPolicies();
+        t.testDefragment();
+        t.testBlockRuns();
+        t.testSchedulers();
+        t.testInlineFiles();
+        t.testReadViews();
+        t.testByteCommands();
+        t.testBlockPool();
+        System.out.println(t.failures + " FAILED");
         t.testVERIFY();
         // t.testOpenAndDestroy();
         // t.testWriteFileMaxRestore();
@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 public class Utils {
     /**
      * Helper methods which are not dependent on the IO, 
@@ -16,24 +18,25 @@ public class Utils {
     
     /**
      * Helper methods to read and write 4 byte integers
-     * in and out of byte[] arrays
+     * in and out of byte[] arrays, see FieldCodec
      */
     public static void intPack(byte[] arr, int val, int loc) {
-        final int MASK = 0xff;
-        for (int i = 3; i >= 0; i--) {
-            arr[loc + i] = (byte) (val & MASK);
-            val = val >> 8;
-        }
+        FieldCodec.putInt(arr, loc, val);
     }
 
     public static int intUnpack(byte[] arr, int loc) {
-        final int MASK = 0xff;
-        int v = (int) arr[loc] & MASK;
-        for (int i = 1; i < 4; i++) {
-            v = v << 8;
-            v = v | ((int) arr[loc + i] & MASK);
-        }
-        return v;
+        return FieldCodec.getInt(arr, loc);
+    }
+    
+    /**
+     * same for 8 byte longs
+     */
+    public static void longPack(byte[] arr, long val, int loc) {
+        FieldCodec.putLong(arr, loc, val);
+    }
+
+    public static long longUnpack(byte[] arr, int loc) {
+        return FieldCodec.getLong(arr, loc);
     }
     
     public static boolean isByteFree(byte input) {
@@ -57,6 +60,19 @@ public class Utils {
         return clear;
     }
     
+    /**
+     * true if the first count block indices follow each other one by one
+     * (and are all valid), so they can be read or written in one go
+     */
+    public static boolean isContiguous(int[] blockIndices, int count) {
+        for (int k=0; k < count; k++) {
+            if (blockIndices[k] < 0 || blockIndices[k] != blockIndices[0] + k) {
+                return false;
+            }
+        }
+        return (count > 0);
+    }
+    
     /**
      * helper method for byte[] comparison
      * important points, for names < 4 characters
@@ -87,4 +103,41 @@ public class Utils {
         }
         return true;
     }
+    
+    /**
+     * Run-length pack a block as (count, value) pairs, count in 1-255.
+     * Returns null when packing would not at least halve the block, 
+     * most blocks on an idle disk are a single run of EMPTY_BYTE.
+     */
+    public static byte[] packBlock(byte[] block) {
+        int limit = block.length / 2;
+        byte[] packed = new byte[limit];
+        int len = 0;
+        int i = 0;
+        while (i < block.length) {
+            byte val = block[i];
+            int run = 1;
+            while (i + run < block.length && block[i + run] == val && run < 255) {
+                run++;
+            }
+            if (len + 2 > limit) {
+                return null;
+            }
+            packed[len++] = (byte) run;
+            packed[len++] = val;
+            i += run;
+        }
+        return Arrays.copyOf(packed, len);
+    }
+    
+    public static byte[] unpackBlock(byte[] packed, int size) {
+        byte[] block = new byte[size];
+        int pos = 0;
+        for (int i=0; i < packed.length; i += 2) {
+            int run = packed[i] & 0xff;
+            Arrays.fill(block, pos, pos + run, packed[i + 1]);
+            pos += run;
+        }
+        return block;
+    }
 }
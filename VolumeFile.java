@@ -0,0 +1,193 @@
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class VolumeFile {
+    /**
+     * Raw binary backing file for a volume: a small header followed by the
+     * blocks at fixed offsets, so a single block can be rewritten in place
+     * with a positional write. Unlike sv this never rewrites the whole
+     * disk, only the blocks IO marked dirty. The block checksum table
+     * follows the blocks, each entry is rewritten along with its block.
+     */
+
+    public static final int MAGIC = 0x43534656; // "CSFV"
+    public static final int HEADER_SIZE = 8; // magic + block count
+
+    private FileChannel channel;
+    // false for volume files from before checksums, until written once
+    private boolean checksummed;
+
+    public VolumeFile(String fn) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fn), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        this.checksummed = (this.channel.size() >= checksumOffset(IO.LDISK_SIZE));
+    }
+
+    public static boolean isVolumeFile(String fn) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(fn));
+        try {
+            return (in.readInt() == MAGIC);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * true if the file already holds a volume (as opposed to being new)
+     */
+    public boolean hasVolume() throws IOException {
+        if (this.channel.size() < HEADER_SIZE + (long) IO.LDISK_SIZE * IO.BLOCK_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        this.channel.read(header, 0);
+        return (header.getInt(0) == MAGIC);
+    }
+
+    private static long blockOffset(int blockIndex) {
+        return HEADER_SIZE + (long) blockIndex * IO.BLOCK_SIZE;
+    }
+
+    private static long checksumOffset(int blockIndex) {
+        return blockOffset(IO.LDISK_SIZE) + (long) blockIndex * 4;
+    }
+
+    /**
+     * every block, checked against the checksum table when there is one
+     */
+    public byte[][] readAll() throws IOException {
+        byte[] all = new byte[IO.LDISK_SIZE * IO.BLOCK_SIZE];
+        this.readBlocks(0, IO.LDISK_SIZE, all);
+        byte[][] ldisk = new byte[IO.LDISK_SIZE][];
+        for (int i=0; i < ldisk.length; i++) {
+            int offset = i * IO.BLOCK_SIZE;
+            ldisk[i] = Arrays.copyOfRange(all, offset, offset + IO.BLOCK_SIZE);
+        }
+        if (this.checksummed) {
+            ByteBuffer table = ByteBuffer.allocate(BlockChecksums.TABLE_SIZE);
+            while (table.hasRemaining()) {
+                if (this.channel.read(table, checksumOffset(0) + table.position()) < 0) {
+                    throw new IOException("volume file is truncated in its checksum table");
+                }
+            }
+            BlockChecksums.verify(ldisk, BlockChecksums.decode(table.array()));
+        }
+        return ldisk;
+    }
+
+    /**
+     * write the header and every block, used when a volume is first attached
+     */
+    public void writeAll(IO io) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(IO.LDISK_SIZE).flip();
+        this.channel.write(header, 0);
+        byte[] all = new byte[IO.LDISK_SIZE * IO.BLOCK_SIZE];
+        io.readBlocks(0, IO.LDISK_SIZE, all);
+        this.writeBlocks(0, IO.LDISK_SIZE, all);
+        this.writeChecksums(io);
+        io.clearDirty();
+    }
+
+    /**
+     * Write only the blocks changed since the last sync. Returns how many
+     * blocks went out. Data blocks go first and are forced out before any
+     * descriptor or block 0 change, so a crash part way through a sync
+     * never leaves a length or block pointer on disk for data that is not.
+     */
+    public int writeDirty(IO io) throws IOException {
+        if (!this.checksummed) {
+            this.writeChecksums(io);
+        }
+        int written = this.writeDirty(io, BitMap.FIRST_DATA_BLOCK, IO.LDISK_SIZE);
+        boolean metadataDirty = false;
+        for (int i=0; i < BitMap.FIRST_DATA_BLOCK; i++) {
+            metadataDirty |= io.isDirty(i);
+        }
+        if (written > 0 && metadataDirty) {
+            this.force(false);
+        }
+        return written + this.writeDirty(io, 0, BitMap.FIRST_DATA_BLOCK);
+    }
+
+    /**
+     * each run of neighbouring dirty blocks goes out as one positional
+     * write, followed by one write for its checksum entries
+     */
+    private int writeDirty(IO io, int from, int to) throws IOException {
+        int written = 0;
+        int i = from;
+        while (i < to) {
+            if (!io.isDirty(i)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < to && io.isDirty(i)) {
+                i++;
+            }
+            int count = i - start;
+            byte[] run = new byte[count * IO.BLOCK_SIZE];
+            io.readBlocks(start, count, run);
+            this.writeBlocks(start, count, run);
+            
+            ByteBuffer checksums = ByteBuffer.allocate(count * 4);
+            for (int k=0; k < count; k++) {
+                checksums.putInt(io.getChecksum(start + k));
+                io.clearDirty(start + k);
+            }
+            checksums.flip();
+            this.write(checksums, checksumOffset(start));
+            written += count;
+        }
+        return written;
+    }
+
+    /**
+     * count blocks from start, back to back into dst, in one positional read
+     */
+    public void readBlocks(int start, int count, byte[] dst) throws IOException {
+        ByteBuffer blocks = ByteBuffer.wrap(dst, 0, count * IO.BLOCK_SIZE);
+        long pos = blockOffset(start);
+        while (blocks.hasRemaining()) {
+            if (this.channel.read(blocks, pos + blocks.position()) < 0) {
+                int at = start + blocks.position() / IO.BLOCK_SIZE;
+                throw new IOException("volume file is truncated at block " + at);
+            }
+        }
+    }
+
+    /**
+     * count blocks from src (back to back) in one positional write
+     */
+    public void writeBlocks(int start, int count, byte[] src) throws IOException {
+        this.write(ByteBuffer.wrap(src, 0, count * IO.BLOCK_SIZE), blockOffset(start));
+    }
+
+    private void write(ByteBuffer src, long pos) throws IOException {
+        while (src.hasRemaining()) {
+            this.channel.write(src, pos + src.position());
+        }
+    }
+
+    private void writeChecksums(IO io) throws IOException {
+        this.write(ByteBuffer.wrap(BlockChecksums.encode(io.getChecksums())), checksumOffset(0));
+        this.checksummed = true;
+    }
+
+    public void force(boolean metaData) throws IOException {
+        this.channel.force(metaData);
+    }
+
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}